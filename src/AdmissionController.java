@@ -0,0 +1,77 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bound the foreground requests a node works on. Requests beyond the concurrency limit wait in a bounded queue, and
+ * are shed with a ServerBusyException once the queue is full or they waited too long. Heartbeat and membership calls
+ * never go through the controller, so they are served even when the node is overloaded.
+ */
+public class AdmissionController {
+  private Semaphore permits;
+  private AtomicInteger queued;
+  private int maxConcurrent;
+  private int maxQueued;
+  private long queueTimeoutMillis;
+  private Metrics metrics;
+
+  public AdmissionController(int maxConcurrent, int maxQueued, long queueTimeoutMillis, Metrics metrics) {
+    this.permits = new Semaphore(maxConcurrent);
+    this.queued = new AtomicInteger();
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.metrics = metrics;
+
+    metrics.gauge("admission.queued", () -> queued.get());
+    metrics.gauge("admission.inflight", () -> this.maxConcurrent - permits.availablePermits());
+  }
+
+  /**
+   * Run a foreground request once admitted
+   * @param request
+   * @return result of the request
+   * @throws ServerBusyException if the request was shed
+   * @throws RemoteException if the request failed
+   */
+  public <T> T call(Callable<T> request) throws RemoteException {
+    admit();
+    try {
+      return request.call();
+    } catch (RemoteException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RemoteException("Request failed", e);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void admit() throws ServerBusyException {
+    if (permits.tryAcquire()) {
+      metrics.increment("admission.admitted");
+      return;
+    }
+
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      metrics.increment("admission.shed");
+      throw new ServerBusyException("Request queue full");
+    }
+    try {
+      if (!permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        metrics.increment("admission.shed");
+        throw new ServerBusyException("Request timed out in queue");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      metrics.increment("admission.shed");
+      throw new ServerBusyException("Request interrupted in queue");
+    } finally {
+      queued.decrementAndGet();
+    }
+    metrics.increment("admission.admitted");
+  }
+}
@@ -0,0 +1,56 @@
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.concurrent.Callable;
+
+/**
+ * Retry of requests shed by overloaded nodes. RMI hands a ServerBusyException thrown by a remote node to the caller
+ * wrapped in a ServerException, so sheds are recognised by the cause as well.
+ */
+public class BusyRetry {
+  private static final int RETRIES = 5;
+  private static final long BACKOFF_MILLIS = 50;
+
+  /**
+   * Run a request, retrying with an increasing backoff while the receiving node sheds load
+   * @param request
+   * @param metrics counts the retries, null to not count them
+   * @return result of the request
+   * @throws RemoteException if the request failed, or the node was still busy after the last retry
+   */
+  public static <T> T call(Callable<T> request, Metrics metrics) throws RemoteException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return request.call();
+      } catch (Exception requestE) {
+        if (!isBusy(requestE)) {
+          if (requestE instanceof RemoteException) {
+            throw (RemoteException) requestE;
+          }
+          throw new RemoteException("Request failed", requestE);
+        }
+        if (metrics != null) {
+          metrics.increment("client.busy.retries");
+        }
+        if (attempt == RETRIES) {
+          throw (RemoteException) requestE;
+        }
+        try {
+          Thread.sleep(BACKOFF_MILLIS * attempt);
+        } catch (InterruptedException interruptE) {
+          Thread.currentThread().interrupt();
+          throw new RemoteException("Request interrupted", interruptE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Check whether a request failed because its node shed it, either locally or on the other side of an RMI call
+   * @param e
+   * @return true if the request was not executed and may be sent again
+   */
+  public static boolean isBusy(Throwable e) {
+    return e instanceof ServerBusyException
+      || (e instanceof ServerException && e.getCause() instanceof ServerBusyException);
+  }
+}
@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Link from a node to the next node of replication chains. Writes queued while a batch is in flight are sent together
+ * as the next batch, in the order they were queued. The next node returns as soon as it applied and forwarded the
+ * batch, so a link never waits on the rest of the chain, and links of chains wrapping around the ring cannot wait on
+ * each other. Acknowledgements from the tails travel back separately.
+ */
+public class ChainLink {
+  private NodeInterface nextNode;
+  private LinkedBlockingQueue<PendingWrite> queue;
+
+  private static final int BATCH_SIZE = 256;
+
+  public ChainLink(NodeInterface nextNode) {
+    this.nextNode = nextNode;
+    this.queue = new LinkedBlockingQueue<>();
+
+    Thread sender = new Thread(this::send, "chain-link");
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /**
+   * Queue a write for the next node
+   * @param write
+   * @return completed once the next node accepted the write
+   */
+  public CompletableFuture<Void> send(ChainWrite write) {
+    PendingWrite pendingWrite = new PendingWrite(write);
+    queue.add(pendingWrite);
+    return pendingWrite.delivery;
+  }
+
+  private void send() {
+    while (true) {
+      ArrayList<PendingWrite> batch = new ArrayList<>();
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, BATCH_SIZE - 1);
+
+      ArrayList<ChainWrite> writes = new ArrayList<>();
+      for (PendingWrite pendingWrite : batch) {
+        writes.add(pendingWrite.write);
+      }
+      try {
+        BusyRetry.call(() -> {
+          nextNode.chainPut(writes);
+          return null;
+        }, null);
+        for (PendingWrite pendingWrite : batch) {
+          pendingWrite.delivery.complete(null);
+        }
+      } catch (Exception chainPutE) {
+        for (PendingWrite pendingWrite : batch) {
+          pendingWrite.delivery.completeExceptionally(chainPutE);
+        }
+      }
+    }
+  }
+
+  private static class PendingWrite {
+    private ChainWrite write;
+    private CompletableFuture<Void> delivery;
+
+    PendingWrite(ChainWrite write) {
+      this.write = write;
+      this.delivery = new CompletableFuture<>();
+    }
+  }
+}
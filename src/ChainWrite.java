@@ -0,0 +1,135 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+
+/**
+ * A write travelling down a replication chain, along with the nodes it still has to reach and the node waiting for
+ * the tail to acknowledge it
+ */
+public class ChainWrite implements Externalizable {
+  private String key;
+  private byte[] value;
+  private long ttlMillis;
+  private long version;
+  private ArrayList<NodeInterface> downstream;
+  // Null until the write enters the ring, then the node the tail acknowledges the write to
+  private NodeInterface origin;
+  private long writeId;
+
+  public ChainWrite() {
+    this.downstream = new ArrayList<>();
+  }
+
+  /**
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @param version version of the write
+   * @param downstream nodes after the receiving node, the last one being the tail
+   */
+  public ChainWrite(String key, byte[] value, long ttlMillis, long version, ArrayList<NodeInterface> downstream) {
+    this(key, value, ttlMillis, version, downstream, null, 0);
+  }
+
+  private ChainWrite(String key, byte[] value, long ttlMillis, long version, ArrayList<NodeInterface> downstream,
+    NodeInterface origin, long writeId) {
+    this.key = key;
+    this.value = value;
+    this.ttlMillis = ttlMillis;
+    this.version = version;
+    this.downstream = downstream;
+    this.origin = origin;
+    this.writeId = writeId;
+  }
+
+  /**
+   * @param origin node waiting for the write to reach the tail
+   * @param writeId id of the write on `origin`
+   * @return the same write, acknowledged by the tail to `origin`
+   */
+  public ChainWrite acknowledgedTo(NodeInterface origin, long writeId) {
+    return new ChainWrite(key, value, ttlMillis, version, downstream, origin, writeId);
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return node the tail acknowledges the write to, null for a write not yet accepted by the head
+   */
+  public NodeInterface getOrigin() {
+    return origin;
+  }
+
+  public long getWriteId() {
+    return writeId;
+  }
+
+  /**
+   * @return true if the receiving node is the tail of the chain
+   */
+  public boolean isTail() {
+    return downstream.isEmpty();
+  }
+
+  /**
+   * @return the node this write has to be forwarded to
+   */
+  public NodeInterface getNextNode() {
+    return downstream.get(0);
+  }
+
+  /**
+   * @return the same write as received by the next node of the chain
+   */
+  public ChainWrite forward() {
+    return new ChainWrite(key, value, ttlMillis, version, new ArrayList<>(downstream.subList(1, downstream.size())),
+      origin, writeId);
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeUTF(key);
+    out.writeInt(value.length);
+    out.write(value);
+    out.writeLong(ttlMillis);
+    out.writeLong(version);
+    out.writeInt(downstream.size());
+    for (NodeInterface node : downstream) {
+      out.writeObject(node);
+    }
+    out.writeObject(origin);
+    out.writeLong(writeId);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    key = in.readUTF();
+    value = new byte[in.readInt()];
+    in.readFully(value);
+    ttlMillis = in.readLong();
+    version = in.readLong();
+    int downstreamSize = in.readInt();
+    downstream = new ArrayList<>();
+    for (int i = 0; i < downstreamSize; i++) {
+      downstream.add((NodeInterface) in.readObject());
+    }
+    origin = (NodeInterface) in.readObject();
+    writeId = in.readLong();
+  }
+}
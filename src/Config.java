@@ -0,0 +1,37 @@
+import java.io.FileReader;
+import java.util.Properties;
+
+/**
+ * Node settings read from a properties file. Every setting has a default, so a missing file or entry is not an error.
+ */
+public class Config {
+  private static Properties properties = new Properties();
+
+  /**
+   * Load settings from a properties file
+   * @param path
+   */
+  public static void load(String path) {
+    try (FileReader reader = new FileReader(path)) {
+      properties.load(reader);
+    } catch (Exception loadConfigE) {
+      System.err.println("[Load Config Exception]" + loadConfigE + ", using defaults");
+    }
+  }
+
+  public static String getString(String name, String defaultValue) {
+    return properties.getProperty(name, defaultValue).trim();
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    return Integer.parseInt(getString(name, String.valueOf(defaultValue)));
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    return Long.parseLong(getString(name, String.valueOf(defaultValue)));
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    return Boolean.parseBoolean(getString(name, String.valueOf(defaultValue)));
+  }
+}
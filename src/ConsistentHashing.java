@@ -1,5 +1,6 @@
 import java.math.BigInteger;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 
 public class ConsistentHashing {
   public static String generateHashedId(String key, int space) {
@@ -34,4 +35,37 @@ public class ConsistentHashing {
       return true;
     }
   }
+
+  /**
+   * Find the index of the node responsible for a hashed id on a sorted ring
+   * @param hashedIdValue
+   * @param sortedIdList hashed id values of the ring members in ascending order
+   * @return index of the first member clockwise from (or at) `hashedIdValue`
+   */
+  public static int findPrimaryIndex(int hashedIdValue, ArrayList<Integer> sortedIdList) {
+    for (int i = 0; i < sortedIdList.size(); i++) {
+      if (sortedIdList.get(i) >= hashedIdValue) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Find the members keeping a replica of a hashed id: the primary followed by the next members clockwise
+   * @param hashedId
+   * @param sortedIdList hashed id values of the ring members in ascending order
+   * @param replicationFactor number of replicas to keep, capped by the ring size
+   * @return distinct hashed id values of the replica holders in preference order
+   */
+  public static ArrayList<Integer> findReplicaIds(String hashedId, ArrayList<Integer> sortedIdList, int replicationFactor) {
+    ArrayList<Integer> replicaIds = new ArrayList<>();
+    int size = sortedIdList.size();
+    int primaryIndex = findPrimaryIndex(Integer.parseInt(hashedId), sortedIdList);
+
+    for (int i = 0; i < Math.min(replicationFactor, size); i++) {
+      replicaIds.add(sortedIdList.get((primaryIndex + i) % size));
+    }
+    return replicaIds;
+  }
 }
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mover of bulk data between nodes: rebalancing, handoff, repair and token moves. Movement jobs run in the
+ * background one at a time, and copy with a bounded number of parallel streams. All streams share a byte rate and a
+ * key rate limit, so foreground requests keep their share of the network and of the partition executors.
+ */
+public class DataMover {
+  private long bytesPerSecond;
+  private long keysPerSecond;
+  private ExecutorService jobExecutor;
+  // Runs jobs that must not wait behind the queued ones
+  private ExecutorService urgentExecutor;
+  private ExecutorService streamPool;
+  private AtomicInteger activeStreams;
+  private Metrics metrics;
+  // Time at which the rate budget handed out so far is used up
+  private long budgetEndNanos;
+
+  public static final int PAGE_SIZE = 1000;
+  private static final int CATCH_UP_ROUNDS = 10;
+  // Rough cost of a key's version, TTL and framing on the wire
+  private static final int KEY_OVERHEAD = 24;
+
+  /**
+   * @param name
+   * @param bytesPerSecond bytes moved per second by all streams together, 0 for no limit
+   * @param keysPerSecond keys moved per second by all streams together, 0 for no limit
+   * @param maxStreams copies running at once
+   * @param metrics
+   */
+  public DataMover(String name, long bytesPerSecond, long keysPerSecond, int maxStreams, Metrics metrics) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.keysPerSecond = keysPerSecond;
+    this.jobExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-data-mover");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.urgentExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-urgent-mover");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.streamPool = Executors.newFixedThreadPool(maxStreams, runnable -> {
+      Thread thread = new Thread(runnable, name + "-data-stream");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.activeStreams = new AtomicInteger();
+    this.metrics = metrics;
+    this.budgetEndNanos = System.nanoTime();
+    metrics.gauge("move.streams", () -> activeStreams.get());
+  }
+
+  /**
+   * Queue a movement job behind the jobs already queued
+   * @param job
+   * @return future of the result of the job
+   */
+  public <T> Future<T> submit(Callable<T> job) {
+    return jobExecutor.submit(job);
+  }
+
+  /**
+   * Run a movement job right away, alongside the job running at the moment if any, rather than behind the queued
+   * jobs. Meant for the handoff of a leaving node, which should not hold up its shutdown.
+   * @param job
+   * @return future of the result of the job
+   */
+  public <T> Future<T> submitUrgent(Callable<T> job) {
+    return urgentExecutor.submit(job);
+  }
+
+  /**
+   * Run the copies of a plan at the throttled rate, one stream per pair of source and receiving node
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @throws Exception if any of the copies failed
+   */
+  public void copy(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    copy(plan, membershipTable, true);
+  }
+
+  /**
+   * Run the copies of a plan, one stream per pair of source and receiving node
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @param throttled false to copy as fast as the nodes allow
+   * @throws Exception if any of the copies failed
+   */
+  public void copy(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable, final boolean throttled)
+    throws Exception {
+    ArrayList<Future<Void>> streams = new ArrayList<>();
+    for (Integer receiverId : plan.getCopies().keySet()) {
+      HashMap<Integer, ArrayList<Integer>> sources = plan.getCopies().get(receiverId);
+      for (Integer sourceId : sources.keySet()) {
+        final NodeInterface source = membershipTable.get(sourceId);
+        final NodeInterface receiver = membershipTable.get(receiverId);
+        final ArrayList<Integer> slots = sources.get(sourceId);
+        streams.add(streamPool.submit(() -> {
+          copySlots(source, receiver, slots, throttled);
+          return null;
+        }));
+      }
+    }
+    for (Future<Void> stream : streams) {
+      PartitionExecutor.await(stream);
+    }
+  }
+
+  /**
+   * Make the nodes copying or dropping slots in a plan record the keys written to them, so that writes landing during
+   * the copies can be caught up afterwards
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @throws Exception if a node could not be reached
+   */
+  public void track(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    HashMap<Integer, ArrayList<Integer>> sourceSlots = plan.getTrackedSlots();
+    for (Integer sourceId : sourceSlots.keySet()) {
+      membershipTable.get(sourceId).trackSlots(sourceSlots.get(sourceId));
+    }
+  }
+
+  /**
+   * Copy the writes recorded during a plan to every node receiving their slots, round after round until a round
+   * finds none or the round limit is reached. Coordinators still writing by the old membership finish within a round
+   * trip, so later rounds pick up their writes as well.
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @throws Exception if a recorded write could not be copied
+   */
+  public void catchUp(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    HashMap<Integer, ArrayList<Integer>> sourceSlots = plan.getTrackedSlots();
+    for (int round = 0; round < CATCH_UP_ROUNDS; round++) {
+      boolean caughtUp = true;
+      for (Integer sourceId : sourceSlots.keySet()) {
+        KeyValueBatch writes = membershipTable.get(sourceId).takeTrackedWrites(sourceSlots.get(sourceId));
+        if (writes.isEmpty()) {
+          continue;
+        }
+        caughtUp = false;
+
+        for (Integer receiverId : plan.getCopies().keySet()) {
+          HashSet<Integer> slots = plan.getReceivedSlots(receiverId);
+          if (receiverId.equals(sourceId)) {
+            continue;
+          }
+          KeyValueBatch share = new KeyValueBatch();
+          long bytes = 0;
+          for (String key : writes.keySet()) {
+            int slot = Integer.parseInt(ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT)));
+            if (slots.contains(slot)) {
+              share.copyEntry(key, writes);
+              bytes += byteSize(key, writes.getValue(key));
+            }
+          }
+          if (!share.isEmpty()) {
+            throttle(share.size(), bytes);
+            membershipTable.get(receiverId).putLocalBatch(share);
+          }
+        }
+      }
+      if (caughtUp) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Make the nodes of a plan stop recording writes
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @throws Exception if a node could not be reached
+   */
+  public void untrack(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    HashMap<Integer, ArrayList<Integer>> sourceSlots = plan.getTrackedSlots();
+    for (Integer sourceId : sourceSlots.keySet()) {
+      membershipTable.get(sourceId).untrackSlots(sourceSlots.get(sourceId));
+    }
+  }
+
+  /**
+   * Make the nodes losing slots in a plan refuse writes to them, before the recorded writes are caught up
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @throws Exception if a node could not be reached
+   */
+  public void fence(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    for (Integer nodeId : plan.getRemovals().keySet()) {
+      membershipTable.get(nodeId).fenceSlots(plan.getRemovals().get(nodeId));
+    }
+  }
+
+  /**
+   * Tell every node of a membership that the slots it became a replica of under it have landed, so it stops reading
+   * them through from their former holders
+   * @param membershipTable nodes by hashed id value
+   * @throws Exception if a node could not be reached
+   */
+  public void settle(HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+    for (NodeInterface node : membershipTable.values()) {
+      node.settleSlots(ring);
+    }
+  }
+
+  /**
+   * Run the removals of a plan, once its copies have landed
+   * @param plan
+   * @param membershipTable nodes of the plan by hashed id value
+   * @throws Exception if any of the removals failed
+   */
+  public void remove(MovePlan plan, HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    for (Integer nodeId : plan.getRemovals().keySet()) {
+      membershipTable.get(nodeId).removeLocalSlots(plan.getRemovals().get(nodeId));
+    }
+  }
+
+  /**
+   * Copy the keys of some slots from one node to another, one throttled page at a time
+   * @param source
+   * @param receiver
+   * @param slots
+   * @param throttled false to copy as fast as the nodes allow
+   * @throws Exception if a page could not be copied
+   */
+  private void copySlots(NodeInterface source, NodeInterface receiver, ArrayList<Integer> slots, boolean throttled)
+    throws Exception {
+    activeStreams.incrementAndGet();
+    try {
+      String startKey = "";
+      while (true) {
+        KeyValueBatch page = source.getLocalSlots(slots, startKey, PAGE_SIZE);
+        if (page.isEmpty()) {
+          return;
+        }
+
+        long bytes = 0;
+        for (String key : page.keySet()) {
+          bytes += byteSize(key, page.getValue(key));
+          startKey = key + "\u0000";
+        }
+        if (throttled) {
+          throttle(page.size(), bytes);
+        } else {
+          metrics.add("move.keys", page.size());
+          metrics.add("move.bytes", bytes);
+        }
+        receiver.putLocalBatch(page);
+        if (page.size() < PAGE_SIZE) {
+          return;
+        }
+      }
+    } finally {
+      activeStreams.decrementAndGet();
+    }
+  }
+
+  /**
+   * Wait until `keys` keys of `bytes` bytes in total may be moved within the rate limits
+   * @param keys
+   * @param bytes
+   * @throws InterruptedException
+   */
+  public void throttle(int keys, long bytes) throws InterruptedException {
+    long costNanos = 0;
+    if (keysPerSecond > 0) {
+      costNanos = Math.max(costNanos, keys * 1000000000L / keysPerSecond);
+    }
+    if (bytesPerSecond > 0) {
+      costNanos = Math.max(costNanos, bytes * 1000000000L / bytesPerSecond);
+    }
+
+    long waitNanos;
+    synchronized (this) {
+      // Wait for the budget handed out before, then hold this move's share of it
+      long now = System.nanoTime();
+      long startNanos = Math.max(budgetEndNanos, now);
+      budgetEndNanos = startNanos + costNanos;
+      waitNanos = startNanos - now;
+    }
+    if (waitNanos > 0) {
+      metrics.add("move.throttle.ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+    metrics.add("move.keys", keys);
+    metrics.add("move.bytes", bytes);
+  }
+
+  /**
+   * Estimate the size of a key-value pair on the wire
+   * @param key
+   * @param value
+   * @return size in bytes
+   */
+  public static long byteSize(String key, byte[] value) {
+    return key.length() + value.length + KEY_OVERHEAD;
+  }
+}
@@ -6,18 +6,31 @@ import java.util.TimerTask;
 public class HeartBeater extends TimerTask {
   protected NodeInterface thisNode;
   protected NodeInterface remoteNode;
-  protected String remoteNodeId;
+  protected volatile String remoteNodeId;
   private NodeInterface detectedPred;
   private NodeInterface detectedSucc;
 
-  public HeartBeater(NodeInterface thisNode, NodeInterface remoteNode) throws Exception {
+  /**
+   * @param thisNode
+   * @param remoteNode
+   * @param remoteNodeId hashed id the remote node is filed under in the membership table
+   */
+  public HeartBeater(NodeInterface thisNode, NodeInterface remoteNode, String remoteNodeId) {
     this.thisNode = thisNode;
     this.remoteNode = remoteNode;
-    this.remoteNodeId = remoteNode.getHashedId();
+    this.remoteNodeId = remoteNodeId;
     this.detectedPred = thisNode;
     this.detectedSucc = thisNode;
   }
 
+  /**
+   * Follow the remote node to a new token
+   * @param remoteNodeId
+   */
+  public void setRemoteNodeId(String remoteNodeId) {
+    this.remoteNodeId = remoteNodeId;
+  }
+
   @Override
   public void run() {
     try {
@@ -0,0 +1,152 @@
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Iterate keys of a set of nodes in sorted order. Keys are pulled from every node page by page in parallel and merged
+ * lazily, so at most two pages per node are held in memory. Keys replicated on several nodes are returned once.
+ *
+ * Pages shed by busy nodes are asked for again. If a node still cannot return a page, the scan fails with an
+ * UncheckedIOException rather than ending early as if all keys had been returned.
+ */
+public class KeyScanner implements Iterator<String> {
+  private PriorityQueue<NodeCursor> heads;
+  private String lastKey;
+  private String prefix;
+  private int pageSize;
+  // Set once a node failed, the scan cannot go on without its keys
+  private UncheckedIOException failure;
+
+  private static final ExecutorService fetchPool = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "key-scanner");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param nodes nodes to scan
+   * @param startKey first key to return (inclusive), empty to start from the smallest key
+   * @param prefix only return keys starting with `prefix`, empty for all keys
+   * @param pageSize number of keys pulled from a node at once
+   */
+  public KeyScanner(Collection<NodeInterface> nodes, String startKey, String prefix, int pageSize) {
+    this.heads = new PriorityQueue<>();
+    this.lastKey = null;
+    this.prefix = prefix;
+    this.pageSize = pageSize;
+
+    // Fan out the first page to all nodes before waiting on any of them
+    ArrayList<NodeCursor> cursors = new ArrayList<>();
+    for (NodeInterface node : nodes) {
+      cursors.add(new NodeCursor(node, startKey));
+    }
+    for (NodeCursor cursor : cursors) {
+      if (cursor.advance()) {
+        heads.add(cursor);
+      }
+    }
+  }
+
+  /**
+   * @throws UncheckedIOException if a node could not return its next page
+   */
+  @Override
+  public boolean hasNext() {
+    if (failure != null) {
+      throw failure;
+    }
+    // Skip copies of the last returned key held by other replicas
+    while (!heads.isEmpty() && heads.peek().current().equals(lastKey)) {
+      pollHead();
+    }
+    return !heads.isEmpty();
+  }
+
+  /**
+   * @throws UncheckedIOException if a node could not return its next page
+   */
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    lastKey = pollHead();
+    return lastKey;
+  }
+
+  private String pollHead() {
+    NodeCursor cursor = heads.poll();
+    String key = cursor.current();
+    try {
+      if (cursor.advance()) {
+        heads.add(cursor);
+      }
+    } catch (UncheckedIOException scanE) {
+      failure = scanE;
+      throw scanE;
+    }
+    return key;
+  }
+
+  /**
+   * Smallest key sorting after `key`
+   */
+  private static String keyAfter(String key) {
+    return key + "\u0000";
+  }
+
+  private class NodeCursor implements Comparable<NodeCursor> {
+    private NodeInterface node;
+    private ArrayList<String> page;
+    private int position;
+    private Future<ArrayList<String>> nextPage;
+
+    NodeCursor(NodeInterface node, String startKey) {
+      this.node = node;
+      this.page = new ArrayList<>();
+      this.position = -1;
+      this.nextPage = fetch(startKey);
+    }
+
+    String current() {
+      return page.get(position);
+    }
+
+    /**
+     * Move to the next key of the node, waiting for the prefetched page when the current one is used up
+     * @return false if the node has no more keys
+     * @throws UncheckedIOException if the node could not return the page
+     */
+    boolean advance() {
+      position++;
+      if (position < page.size()) {
+        return true;
+      }
+      if (nextPage == null) {
+        return false;
+      }
+
+      try {
+        page = PartitionExecutor.await(nextPage);
+      } catch (RemoteException scanE) {
+        throw new UncheckedIOException(scanE);
+      }
+      position = 0;
+      // Prefetch the following page while the current one is being merged
+      nextPage = page.size() < pageSize ? null : fetch(keyAfter(page.get(page.size() - 1)));
+      return !page.isEmpty();
+    }
+
+    private Future<ArrayList<String>> fetch(final String startKey) {
+      return fetchPool.submit(() -> BusyRetry.call(() -> node.scanLocal(startKey, prefix, pageSize), null));
+    }
+
+    @Override
+    public int compareTo(NodeCursor other) {
+      return current().compareTo(other.current());
+    }
+  }
+}
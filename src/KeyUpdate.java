@@ -0,0 +1,114 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-modify-write of a single key, applied atomically by the primary of the key
+ */
+public class KeyUpdate implements Externalizable {
+  private Type type;
+  // Null for compare-and-set on an absent key
+  private byte[] expected;
+  private byte[] operand;
+  private long delta;
+
+  public enum Type {
+    COMPARE_AND_SET, INCREMENT, APPEND
+  }
+
+  public KeyUpdate() {
+  }
+
+  private KeyUpdate(Type type, byte[] expected, byte[] operand, long delta) {
+    this.type = type;
+    this.expected = expected;
+    this.operand = operand;
+    this.delta = delta;
+  }
+
+  /**
+   * Set the key to `value` if it currently holds `expected`
+   * @param expected current value, null to only set an absent key
+   * @param value
+   * @return update
+   */
+  public static KeyUpdate compareAndSet(byte[] expected, byte[] value) {
+    return new KeyUpdate(Type.COMPARE_AND_SET, expected, value, 0);
+  }
+
+  /**
+   * Add `delta` to the decimal integer held by the key, an absent key counting as 0
+   * @param delta
+   * @return update
+   */
+  public static KeyUpdate increment(long delta) {
+    return new KeyUpdate(Type.INCREMENT, null, new byte[0], delta);
+  }
+
+  /**
+   * Append `suffix` to the value of the key, an absent key counting as empty
+   * @param suffix
+   * @return update
+   */
+  public static KeyUpdate append(byte[] suffix) {
+    return new KeyUpdate(Type.APPEND, null, suffix, 0);
+  }
+
+  /**
+   * Compute the new value of the key
+   * @param current current value, null if the key is absent
+   * @return new value, or null if a compare-and-set does not match
+   * @throws NumberFormatException if an increment finds a value that is not an integer
+   */
+  public byte[] apply(byte[] current) {
+    switch (type) {
+      case COMPARE_AND_SET:
+        return Arrays.equals(current, expected) ? operand : null;
+      case INCREMENT:
+        long number = current == null ? 0 : Long.parseLong(new String(current, StandardCharsets.UTF_8));
+        return String.valueOf(number + delta).getBytes(StandardCharsets.UTF_8);
+      default:
+        if (current == null) {
+          return operand;
+        }
+        byte[] appended = Arrays.copyOf(current, current.length + operand.length);
+        System.arraycopy(operand, 0, appended, current.length, operand.length);
+        return appended;
+    }
+  }
+
+  /**
+   * @return true if the key keeps its remaining time to live, false if the new value does not expire
+   */
+  public boolean keepsTtl() {
+    return type != Type.COMPARE_AND_SET;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(type.ordinal());
+    out.writeInt(expected == null ? -1 : expected.length);
+    if (expected != null) {
+      out.write(expected);
+    }
+    out.writeInt(operand.length);
+    out.write(operand);
+    out.writeLong(delta);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    type = Type.values()[in.readByte()];
+    int expectedLength = in.readInt();
+    if (expectedLength >= 0) {
+      expected = new byte[expectedLength];
+      in.readFully(expected);
+    }
+    operand = new byte[in.readInt()];
+    in.readFully(operand);
+    delta = in.readLong();
+  }
+}
@@ -0,0 +1,100 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * A batch of key-value pairs shipped between nodes. Pairs are written with a compact hand-rolled encoding instead of
+ * default object serialization: the key, the value length and bytes, the version, then the remaining time to live.
+ */
+public class KeyValueBatch implements Externalizable {
+  private LinkedHashMap<String, Item> items;
+
+  public KeyValueBatch() {
+    this.items = new LinkedHashMap<>();
+  }
+
+  /**
+   * Add a key-value pair, replacing any pair with the same key
+   * @param key
+   * @param value
+   * @param ttlMillis remaining time to live in milliseconds, 0 if the key does not expire
+   * @param version version of the write that stored the pair
+   */
+  public void put(String key, byte[] value, long ttlMillis, long version) {
+    items.put(key, new Item(value, ttlMillis, version));
+  }
+
+  /**
+   * Add the pair of `key` held by another batch
+   * @param key
+   * @param source
+   */
+  public void copyEntry(String key, KeyValueBatch source) {
+    items.put(key, source.items.get(key));
+  }
+
+  public Set<String> keySet() {
+    return items.keySet();
+  }
+
+  public byte[] getValue(String key) {
+    return items.get(key).value;
+  }
+
+  public long getTtlMillis(String key) {
+    return items.get(key).ttlMillis;
+  }
+
+  public long getVersion(String key) {
+    return items.get(key).version;
+  }
+
+  public int size() {
+    return items.size();
+  }
+
+  public boolean isEmpty() {
+    return items.isEmpty();
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeInt(items.size());
+    for (String key : items.keySet()) {
+      Item item = items.get(key);
+      out.writeUTF(key);
+      out.writeInt(item.value.length);
+      out.write(item.value);
+      out.writeLong(item.version);
+      out.writeLong(item.ttlMillis);
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    int size = in.readInt();
+    items = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      String key = in.readUTF();
+      byte[] value = new byte[in.readInt()];
+      in.readFully(value);
+      long version = in.readLong();
+      items.put(key, new Item(value, in.readLong(), version));
+    }
+  }
+
+  private static class Item {
+    private byte[] value;
+    private long ttlMillis;
+    private long version;
+
+    Item(byte[] value, long ttlMillis, long version) {
+      this.value = value;
+      this.ttlMillis = ttlMillis;
+      this.version = version;
+    }
+  }
+}
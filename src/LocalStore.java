@@ -0,0 +1,509 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Key-value storage of a single node, sorted by key. Keys may carry a TTL, and the store stays within a memory budget
+ * by evicting keys according to an eviction policy.
+ *
+ * Each key is only written by the owner of its partition. Expiry and eviction run on other threads, so they only
+ * remove an entry if it has not been replaced in the meantime.
+ */
+public class LocalStore {
+  private ConcurrentSkipListMap<String, Entry> entries;
+  private AtomicLong usedBytes;
+  private long memoryBudget;
+  private EvictionPolicy evictionPolicy;
+  // Best eviction candidates sampled so far, kept across evictions so every choice weighs more than one sample
+  private final ArrayList<Entry> evictionPool;
+  private DelayQueue<Expiry> expiryQueue;
+  // Number of keys per ring slot
+  private AtomicLongArray slotKeys;
+  // Hashes of the key and version of every entry combined per ring slot, equal on nodes holding the same writes
+  private AtomicLongArray slotDigests;
+
+  // Rough per-entry cost of the skip list node, the entry object and the key/value headers
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int EVICTION_SAMPLE_SIZE = 5;
+  private static final int EVICTION_POOL_SIZE = 16;
+  // Key characters an eviction sample picks at random before settling on the next key
+  private static final int SAMPLE_DEPTH = 3;
+
+  public enum EvictionPolicy {
+    LRU, LFU, RANDOM
+  }
+
+  /**
+   * @param memoryBudget maximum estimated size of the stored entries in bytes, 0 for no limit
+   * @param evictionPolicy
+   */
+  public LocalStore(long memoryBudget, EvictionPolicy evictionPolicy) {
+    this.entries = new ConcurrentSkipListMap<>();
+    this.usedBytes = new AtomicLong();
+    this.memoryBudget = memoryBudget;
+    this.evictionPolicy = evictionPolicy;
+    this.evictionPool = new ArrayList<>();
+    this.expiryQueue = new DelayQueue<>();
+    this.slotKeys = new AtomicLongArray((int)Math.pow(2, Node.HASH_BIT));
+    this.slotDigests = new AtomicLongArray((int)Math.pow(2, Node.HASH_BIT));
+
+    Thread expiryThread = new Thread(this::expire, "local-store-expiry");
+    expiryThread.setDaemon(true);
+    expiryThread.start();
+  }
+
+  /**
+   * Get value of a key, expired keys are never returned
+   * @param key
+   * @return value, or null if the key is absent or expired
+   */
+  public byte[] get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.isExpired()) {
+      removeEntry(key, entry);
+      return null;
+    }
+    entry.touch();
+    return entry.value;
+  }
+
+  /**
+   * Get value of a key along with its version
+   * @param key
+   * @return versioned value, or null if the key is absent or expired
+   */
+  public VersionedValue getVersioned(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.isExpired()) {
+      removeEntry(key, entry);
+      return null;
+    }
+    entry.touch();
+    return new VersionedValue(entry.value, entry.version, entry.remainingTtl(System.currentTimeMillis()));
+  }
+
+  /**
+   * Store a key-value pair, unless the store already holds a newer version of the key. Two writes carrying the same
+   * version are ordered by their values, so every replica keeps the same one whichever arrives first.
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @param version version of the write
+   * @return false if the write was ignored as stale
+   */
+  public boolean put(String key, byte[] value, long ttlMillis, long version) {
+    // Only the partition owner writes a key, so nothing can slip in between this check and the put
+    Entry current = entries.get(key);
+    if (current != null && !current.isExpired()
+      && (current.version > version || (current.version == version && compareValues(current.value, value) >= 0))) {
+      return false;
+    }
+
+    int slot = current != null ? current.slot : slotOf(key);
+    Entry entry = new Entry(key, value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0, version, slot);
+    Entry previous = entries.put(key, entry);
+    usedBytes.addAndGet(entry.size - (previous == null ? 0 : previous.size));
+    if (previous == null) {
+      slotKeys.incrementAndGet(slot);
+    } else {
+      updateDigest(previous);
+    }
+    updateDigest(entry);
+    if (entry.expireAt > 0) {
+      expiryQueue.add(new Expiry(key, entry.version, entry.expireAt));
+    }
+    evictIfNeeded();
+    return true;
+  }
+
+  public void putAll(KeyValueBatch batch) {
+    for (String key : batch.keySet()) {
+      put(key, batch.getValue(key), batch.getTtlMillis(key), batch.getVersion(key));
+    }
+  }
+
+  public void remove(String key) {
+    Entry previous = entries.remove(key);
+    if (previous != null) {
+      usedBytes.addAndGet(-previous.size);
+      slotKeys.decrementAndGet(previous.slot);
+      updateDigest(previous);
+    }
+  }
+
+  /**
+   * Copy live key-value pairs of some ring slots, starting from `startKey`
+   * @param slots
+   * @param startKey first key to consider (inclusive)
+   * @param limit maximum number of pairs to return
+   * @return key-value pairs sorted by key
+   */
+  public KeyValueBatch scanSlots(Set<Integer> slots, String startKey, int limit) {
+    KeyValueBatch batch = new KeyValueBatch();
+    long now = System.currentTimeMillis();
+    for (Entry entry : entries.tailMap(startKey).values()) {
+      if (batch.size() == limit) {
+        break;
+      }
+      if (slots.contains(entry.slot) && !entry.isExpired()) {
+        batch.put(entry.key, entry.value, entry.remainingTtl(now), entry.version);
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Remove all keys of some ring slots. Keys written again while removing are left alone.
+   * @param slots
+   * @return number of keys removed
+   */
+  public int removeSlots(Set<Integer> slots) {
+    int count = 0;
+    for (Entry entry : entries.values()) {
+      if (slots.contains(entry.slot) && removeEntry(entry.key, entry)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of keys stored for every ring slot
+   * @return key counts indexed by slot
+   */
+  public long[] getSlotKeyCounts() {
+    long[] counts = new long[slotKeys.length()];
+    for (int slot = 0; slot < counts.length; slot++) {
+      counts[slot] = slotKeys.get(slot);
+    }
+    return counts;
+  }
+
+  /**
+   * Get a digest of the keys and versions stored for every ring slot. Two stores holding the same writes of a slot
+   * have the same digest for it.
+   * @return digests indexed by slot
+   */
+  public long[] getSlotDigests() {
+    long[] digests = new long[slotDigests.length()];
+    for (int slot = 0; slot < digests.length; slot++) {
+      digests[slot] = slotDigests.get(slot);
+    }
+    return digests;
+  }
+
+  /**
+   * Copy all live key-value pairs, along with their remaining time to live
+   * @return key-value pairs sorted by key
+   */
+  public KeyValueBatch snapshot() {
+    KeyValueBatch snapshot = new KeyValueBatch();
+    long now = System.currentTimeMillis();
+    for (Entry entry : entries.values()) {
+      if (!entry.isExpired()) {
+        snapshot.put(entry.key, entry.value, entry.remainingTtl(now), entry.version);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Go through all live entries in key order, without copying them
+   * @param visitor
+   * @throws IOException if the visitor failed
+   */
+  public void forEachEntry(EntryVisitor visitor) throws IOException {
+    for (Entry entry : entries.values()) {
+      if (!entry.isExpired()) {
+        visitor.visit(entry.key, entry.value, entry.version, entry.expireAt);
+      }
+    }
+  }
+
+  /**
+   * Get sorted live keys, starting from `startKey`
+   * @param startKey first key to return (inclusive)
+   * @param prefix only return keys starting with `prefix`
+   * @param limit maximum number of keys to return
+   * @return keys in ascending order
+   */
+  public ArrayList<String> scan(String startKey, String prefix, int limit) {
+    ArrayList<String> keys = new ArrayList<>();
+    String fromKey = startKey.compareTo(prefix) > 0 ? startKey : prefix;
+
+    for (Entry entry : entries.tailMap(fromKey).values()) {
+      if (keys.size() == limit || !entry.key.startsWith(prefix)) {
+        break;
+      }
+      if (!entry.isExpired()) {
+        keys.add(entry.key);
+      }
+    }
+    return keys;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  private static int slotOf(String key) {
+    return Integer.parseInt(ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT)));
+  }
+
+  /**
+   * Compare two values byte by byte, as unsigned bytes
+   * @param a
+   * @param b
+   * @return negative, zero or positive as `a` orders before, with or after `b`
+   */
+  private static int compareValues(byte[] a, byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Add an entry to the digest of its slot, or take it out again. Hashes are combined with XOR, so the order of
+   * writes does not matter.
+   * @param entry
+   */
+  private void updateDigest(Entry entry) {
+    long hash = entry.key.hashCode() * 0x9E3779B97F4A7C15L + entry.version;
+    hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+    final long entryHash = hash ^ (hash >>> 33);
+    slotDigests.accumulateAndGet(entry.slot, entryHash, (digest, update) -> digest ^ update);
+  }
+
+  private boolean removeEntry(String key, Entry entry) {
+    if (entries.remove(key, entry)) {
+      usedBytes.addAndGet(-entry.size);
+      slotKeys.decrementAndGet(entry.slot);
+      updateDigest(entry);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Evict sampled keys until the store is back within its memory budget
+   */
+  private void evictIfNeeded() {
+    while (memoryBudget > 0 && usedBytes.get() > memoryBudget) {
+      Entry victim;
+      // Partition owners evict concurrently, the pool is theirs in turn
+      synchronized (evictionPool) {
+        victim = chooseVictim(sampleEntries());
+      }
+      if (victim == null) {
+        return;
+      }
+      // Pooled candidates overwritten or removed since are stale, and simply dropped
+      removeEntry(victim.key, victim);
+    }
+  }
+
+  /**
+   * Pick the entry to evict among fresh samples and the candidates pooled by earlier evictions
+   * @param samples
+   * @return entry to evict, or null if the store is empty
+   */
+  private Entry chooseVictim(ArrayList<Entry> samples) {
+    // Expired keys are always the first to go
+    for (Entry sample : samples) {
+      if (sample.isExpired()) {
+        return sample;
+      }
+    }
+    if (evictionPolicy == EvictionPolicy.RANDOM) {
+      return samples.isEmpty() ? null : samples.get(ThreadLocalRandom.current().nextInt(samples.size()));
+    }
+
+    for (Entry sample : samples) {
+      if (!evictionPool.contains(sample)) {
+        evictionPool.add(sample);
+      }
+    }
+    // Keep the likeliest victims for the next evictions. Other threads touch the candidates meanwhile, so they are
+    // compared one at a time rather than sorted.
+    while (evictionPool.size() > EVICTION_POOL_SIZE) {
+      evictionPool.remove(Collections.max(evictionPool, Comparator.comparingLong(this::evictionRank)));
+    }
+    if (evictionPool.isEmpty()) {
+      return null;
+    }
+    Entry victim = Collections.min(evictionPool, Comparator.comparingLong(this::evictionRank));
+    evictionPool.remove(victim);
+    return victim;
+  }
+
+  /**
+   * @param entry
+   * @return last access or access count of the entry, by the eviction policy, the lowest is evicted first
+   */
+  private long evictionRank(Entry entry) {
+    return evictionPolicy == EvictionPolicy.LRU ? entry.lastAccess : entry.accessCount;
+  }
+
+  /**
+   * Take a few entries at random positions of the key space
+   * @return sampled entries, empty if the store is empty
+   */
+  private ArrayList<Entry> sampleEntries() {
+    ArrayList<Entry> samples = new ArrayList<>();
+    Map.Entry<String, Entry> first = entries.firstEntry();
+    Map.Entry<String, Entry> last = entries.lastEntry();
+    for (int i = 0; i < EVICTION_SAMPLE_SIZE && first != null && last != null; i++) {
+      Entry sample = randomEntry(first, last);
+      if (!samples.contains(sample)) {
+        samples.add(sample);
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Pick an entry by descending the key prefixes at random, one character at a time, only into prefixes some key has.
+   * Past SAMPLE_DEPTH characters the key following the random prefix is taken.
+   * @param low first entry
+   * @param high last entry
+   * @return entry
+   */
+  private Entry randomEntry(Map.Entry<String, Entry> low, Map.Entry<String, Entry> high) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int depth = 1; high != null && low.getKey().compareTo(high.getKey()) < 0; depth++) {
+      String lowKey = low.getKey();
+      String highKey = high.getKey();
+      int shared = 0;
+      while (shared < lowKey.length() && lowKey.charAt(shared) == highKey.charAt(shared)) {
+        shared++;
+      }
+      // The lowest key ends at the shared prefix when it is a prefix of the others, -1 stands for it
+      int branch = random.nextInt(shared < lowKey.length() ? lowKey.charAt(shared) : -1, highKey.charAt(shared) + 1);
+      if (branch < 0) {
+        return low.getValue();
+      }
+      String prefix = highKey.substring(0, shared);
+      Map.Entry<String, Entry> next = entries.ceilingEntry(prefix + (char) branch);
+      if (next == null || next.getKey().compareTo(highKey) >= 0) {
+        return high.getValue();
+      }
+      if (depth == SAMPLE_DEPTH) {
+        return next.getValue();
+      }
+      // Narrow down to the keys sharing one more character with the key found
+      char nextChar = next.getKey().charAt(shared);
+      low = next;
+      if (nextChar < Character.MAX_VALUE) {
+        high = entries.lowerEntry(prefix + (char) (nextChar + 1));
+      }
+    }
+    return low.getValue();
+  }
+
+  /**
+   * Remove keys as their TTL runs out. Keys that were overwritten since are left alone.
+   */
+  private void expire() {
+    while (true) {
+      try {
+        Expiry expiry = expiryQueue.take();
+        Entry entry = entries.get(expiry.key);
+        if (entry != null && entry.version == expiry.version && entry.expireAt == expiry.expireAt) {
+          removeEntry(expiry.key, entry);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Receives the entries of the store in key order
+   */
+  public interface EntryVisitor {
+    void visit(String key, byte[] value, long version, long expireAt) throws IOException;
+  }
+
+  private static class Entry {
+    private String key;
+    private byte[] value;
+    private long expireAt;
+    private long version;
+    private int slot;
+    private int size;
+    private volatile long lastAccess;
+    private volatile int accessCount;
+
+    Entry(String key, byte[] value, long expireAt, long version, int slot) {
+      this.key = key;
+      this.value = value;
+      this.expireAt = expireAt;
+      this.version = version;
+      this.slot = slot;
+      this.size = ENTRY_OVERHEAD + 2 * key.length() + value.length;
+      this.lastAccess = System.nanoTime();
+      this.accessCount = 0;
+    }
+
+    boolean isExpired() {
+      return expireAt > 0 && expireAt <= System.currentTimeMillis();
+    }
+
+    long remainingTtl(long now) {
+      return expireAt > 0 ? Math.max(expireAt - now, 1) : 0;
+    }
+
+    void touch() {
+      lastAccess = System.nanoTime();
+      if (accessCount < Integer.MAX_VALUE) {
+        accessCount++;
+      }
+    }
+  }
+
+  /**
+   * Deadline of one write of a key. It does not hold the entry, so values replaced before their deadline are not
+   * kept alive by the queue.
+   */
+  private static class Expiry implements Delayed {
+    private String key;
+    private long version;
+    private long expireAt;
+
+    Expiry(String key, long version, long expireAt) {
+      this.key = key;
+      this.version = version;
+      this.expireAt = expireAt;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(expireAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(expireAt, ((Expiry) other).expireAt);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and gauges of a node
+ */
+public class Metrics {
+  private ConcurrentHashMap<String, AtomicLong> counters;
+  private ConcurrentHashMap<String, LongSupplier> gauges;
+
+  public Metrics() {
+    this.counters = new ConcurrentHashMap<>();
+    this.gauges = new ConcurrentHashMap<>();
+  }
+
+  public void increment(String name) {
+    add(name, 1);
+  }
+
+  public void add(String name, long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new AtomicLong());
+      counter = counters.get(name);
+    }
+    counter.addAndGet(delta);
+  }
+
+  /**
+   * Register a value read every time the metrics are taken
+   * @param name
+   * @param gauge
+   */
+  public void gauge(String name, LongSupplier gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Take current values of all counters and gauges
+   * @return metric values by name
+   */
+  public HashMap<String, Long> snapshot() {
+    HashMap<String, Long> snapshot = new HashMap<>();
+    for (String name : counters.keySet()) {
+      snapshot.put(name, counters.get(name).get());
+    }
+    for (String name : gauges.keySet()) {
+      snapshot.put(name, gauges.get(name).getAsLong());
+    }
+    return snapshot;
+  }
+}
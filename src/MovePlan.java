@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Data movement between nodes, by ring slot: the slots each node copies to each other node, and the slots each node
+ * drops once every copy has landed. Nodes are given by hashed id value.
+ */
+public class MovePlan {
+  // Receiver -> source -> slots
+  private HashMap<Integer, HashMap<Integer, ArrayList<Integer>>> copies;
+  private HashMap<Integer, ArrayList<Integer>> removals;
+
+  public MovePlan() {
+    this.copies = new HashMap<>();
+    this.removals = new HashMap<>();
+  }
+
+  /**
+   * Copy the keys of `slot` from `sourceId` to `receiverId`
+   * @param receiverId
+   * @param sourceId
+   * @param slot
+   */
+  public void copy(Integer receiverId, Integer sourceId, int slot) {
+    if (!copies.containsKey(receiverId)) {
+      copies.put(receiverId, new HashMap<Integer, ArrayList<Integer>>());
+    }
+    if (!copies.get(receiverId).containsKey(sourceId)) {
+      copies.get(receiverId).put(sourceId, new ArrayList<Integer>());
+    }
+    copies.get(receiverId).get(sourceId).add(slot);
+  }
+
+  /**
+   * Drop the keys of `slot` from `nodeId` after the copies
+   * @param nodeId
+   * @param slot
+   */
+  public void remove(Integer nodeId, int slot) {
+    if (!removals.containsKey(nodeId)) {
+      removals.put(nodeId, new ArrayList<Integer>());
+    }
+    removals.get(nodeId).add(slot);
+  }
+
+  public HashMap<Integer, HashMap<Integer, ArrayList<Integer>>> getCopies() {
+    return copies;
+  }
+
+  public HashMap<Integer, ArrayList<Integer>> getRemovals() {
+    return removals;
+  }
+
+  /**
+   * @return slots each node copies to any other node, by source
+   */
+  private HashMap<Integer, ArrayList<Integer>> getSourceSlots() {
+    HashMap<Integer, ArrayList<Integer>> sourceSlots = new HashMap<>();
+    for (HashMap<Integer, ArrayList<Integer>> sources : copies.values()) {
+      for (Integer sourceId : sources.keySet()) {
+        if (!sourceSlots.containsKey(sourceId)) {
+          sourceSlots.put(sourceId, new ArrayList<Integer>());
+        }
+        for (Integer slot : sources.get(sourceId)) {
+          if (!sourceSlots.get(sourceId).contains(slot)) {
+            sourceSlots.get(sourceId).add(slot);
+          }
+        }
+      }
+    }
+    return sourceSlots;
+  }
+
+  /**
+   * @return slots each node copies to another node or drops, by node. These are the slots whose writes are recorded
+   * while the plan runs, since clients on an older membership keep writing to them.
+   */
+  public HashMap<Integer, ArrayList<Integer>> getTrackedSlots() {
+    HashMap<Integer, ArrayList<Integer>> trackedSlots = getSourceSlots();
+    for (Integer nodeId : removals.keySet()) {
+      if (!trackedSlots.containsKey(nodeId)) {
+        trackedSlots.put(nodeId, new ArrayList<Integer>());
+      }
+      for (Integer slot : removals.get(nodeId)) {
+        if (!trackedSlots.get(nodeId).contains(slot)) {
+          trackedSlots.get(nodeId).add(slot);
+        }
+      }
+    }
+    return trackedSlots;
+  }
+
+  /**
+   * @param receiverId
+   * @return slots `receiverId` copies from any node
+   */
+  public HashSet<Integer> getReceivedSlots(Integer receiverId) {
+    HashSet<Integer> receivedSlots = new HashSet<>();
+    if (copies.containsKey(receiverId)) {
+      for (ArrayList<Integer> slots : copies.get(receiverId).values()) {
+        receivedSlots.addAll(slots);
+      }
+    }
+    return receivedSlots;
+  }
+
+  /**
+   * @return true if no node copies or drops anything
+   */
+  public boolean isEmpty() {
+    return copies.isEmpty() && removals.isEmpty();
+  }
+}
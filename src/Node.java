@@ -1,35 +1,158 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Node extends UnicastRemoteObject implements NodeInterface {
   private String name;
-  private String hashedId;
-  private boolean recoverStatus;
-  private NodeInterface successor;
-  private NodeInterface predecessor;
-  private HashMap<Integer, NodeInterface> membershipTable;
-  private HashMap<String, String> storage;
-
-  private HashMap<String, Timer> heartBeaterTimerMap;
-  private HashMap<String, HeartBeater> heartBeaterTaskMap;
-
-  private static final String NAME_PREFIX = "vm-";
+  // Changes when the token planner moves the node on the ring
+  private volatile String hashedId;
+  private volatile boolean recoverStatus;
+  private volatile NodeInterface successor;
+  private volatile NodeInterface predecessor;
+  // Replaced as a whole by the control executor, never modified in place
+  private volatile HashMap<Integer, NodeInterface> membershipTable;
+  // Grows with every membership table replacement, starting from the clock so a restarted node never goes back
+  private volatile long routingVersion;
+  // Each key is only written by the owner of its partition, reads are lock-free
+  private LocalStore storage;
+  private PartitionExecutor partitionExecutor;
+  private int replicationFactor;
+  private boolean chainReplication;
+  private ConcurrentHashMap<NodeInterface, ChainLink> chainLinkMap;
+  // Chain writes sent by this node and not yet acknowledged by their tail, by write id
+  private ConcurrentHashMap<Long, CompletableFuture<Void>> chainAcks;
+  private AtomicLong chainWriteIds;
+  private long chainAckTimeoutMillis;
+  private Metrics metrics;
+  private AdmissionController admissionController;
+  private boolean readRepair;
+  private ExecutorService readRepairPool;
+  // Requests served per ring slot since the last load measurement
+  private AtomicLongArray slotRequests;
+  private DataMover dataMover;
+  private RequestRouter router;
+  private VersionClock versionClock;
+  // Slots this node handed over to other replicas, foreground writes to them are refused until it replicates them again
+  private Set<Integer> fencedSlots;
+  // Slots being copied away from this node, and the keys written to them since
+  private Set<Integer> trackedSlots;
+  private Set<String> trackedKeys;
+  // Slots this node became a replica of before their keys were copied in, with the nodes that held them before
+  private ConcurrentHashMap<Integer, ArrayList<NodeInterface>> pendingSlots;
+  // Hashed ids the nodes of the address book join at, kept free of moved tokens
+  private Set<Integer> addressBookSlots;
+
+  private ConcurrentHashMap<String, Timer> heartBeaterTimerMap;
+  private ConcurrentHashMap<String, HeartBeater> heartBeaterTaskMap;
+
+  public static final String NAME_PREFIX = "vm-";
   public static final int HASH_BIT = 7;
+  public static final int SCAN_PAGE_SIZE = 1000;
+  private static final int PARTITION_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final int MAILBOX_CAPACITY = 1024;
+  private static final int IMPORT_BATCH_SIZE = 1000;
 
   Node(String vmId) throws RemoteException {
     this.name = NAME_PREFIX + vmId;
     this.hashedId = ConsistentHashing.generateHashedId(this.name, (int)Math.pow(2, HASH_BIT));
+    // Hashed ids are distinct within the ring, and the issuer id stays the same when the token moves
+    this.versionClock = new VersionClock(Integer.parseInt(this.hashedId));
     this.recoverStatus = false;
     this.successor = this;
     this.predecessor = this;
     this.membershipTable = new HashMap<>();
-    this.storage = new HashMap<>();
+    this.routingVersion = System.currentTimeMillis();
+    this.storage = new LocalStore(
+      Config.getLong("storage.memory.budget", 0),
+      LocalStore.EvictionPolicy.valueOf(Config.getString("storage.eviction.policy", "LRU"))
+    );
+    this.partitionExecutor = new PartitionExecutor(this.name, PARTITION_COUNT, MAILBOX_CAPACITY);
+    this.replicationFactor = Config.getInt("replication.factor", 3);
+    int ringSize = (int)Math.pow(2, HASH_BIT);
+    if (replicationFactor < 1 || replicationFactor > ringSize) {
+      throw new IllegalArgumentException(
+        "replication.factor must be between 1 and " + ringSize + ", got " + replicationFactor);
+    }
+    this.chainReplication = Config.getString("replication.mode", "coordinator").equals("chain");
+    this.chainLinkMap = new ConcurrentHashMap<>();
+    this.chainAcks = new ConcurrentHashMap<>();
+    this.chainWriteIds = new AtomicLong();
+    this.chainAckTimeoutMillis = Config.getLong("chain.ack.timeout.ms", 5000);
+    this.metrics = new Metrics();
+    this.admissionController = new AdmissionController(
+      Config.getInt("admission.max.concurrent", 64),
+      Config.getInt("admission.max.queued", 256),
+      Config.getLong("admission.queue.timeout.ms", 100),
+      metrics
+    );
+    this.readRepair = Config.getBoolean("read.repair", false);
+    this.readRepairPool = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "read-repair");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.slotRequests = new AtomicLongArray((int)Math.pow(2, HASH_BIT));
+    this.dataMover = new DataMover(
+      this.name,
+      Config.getLong("move.bytes.per.second", 33554432),
+      Config.getLong("move.keys.per.second", 20000),
+      Config.getInt("move.max.streams", 4),
+      metrics
+    );
+    this.router = new RequestRouter(new RequestRouter.Routing() {
+      @Override
+      public ArrayList<NodeInterface> getPreferenceList(String hashedId) {
+        return Node.this.getPreferenceList(hashedId);
+      }
 
-    this.heartBeaterTimerMap = new HashMap<>();
-    this.heartBeaterTaskMap = new HashMap<>();
+      @Override
+      public boolean isChainReplication() {
+        return chainReplication;
+      }
+
+      @Override
+      public void sendChainWrite(NodeInterface head, ChainWrite write) throws RemoteException {
+        Node.this.sendChainWrite(head, write);
+      }
+
+      @Override
+      public boolean refresh() {
+        // Membership changes are pushed to this node, there is nothing to fetch
+        return false;
+      }
+    }, metrics);
+    this.fencedSlots = ConcurrentHashMap.newKeySet();
+    this.trackedSlots = ConcurrentHashMap.newKeySet();
+    this.trackedKeys = ConcurrentHashMap.newKeySet();
+    this.pendingSlots = new ConcurrentHashMap<>();
+    this.addressBookSlots = ConcurrentHashMap.newKeySet();
+    long plannerInterval = Config.getLong("token.planner.interval.ms", 60000);
+    if (plannerInterval > 0) {
+      TokenPlanner tokenPlanner = new TokenPlanner(this, Config.getInt("token.planner.imbalance.percent", 50));
+      new Timer("token-planner", true).schedule(tokenPlanner, plannerInterval, plannerInterval);
+    }
+    metrics.gauge("partition.mailbox.depth", () -> partitionExecutor.getQueueDepth());
+    metrics.gauge("storage.keys", () -> storage.size());
+    metrics.gauge("storage.bytes", () -> storage.getUsedBytes());
+
+    this.heartBeaterTimerMap = new ConcurrentHashMap<>();
+    this.heartBeaterTaskMap = new ConcurrentHashMap<>();
 
     Registry registry;
     int port = Integer.parseInt("100" + vmId);
@@ -50,6 +173,7 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
 
       int remotePort = Integer.parseInt("100" + remoteId);
       String remoteName = NAME_PREFIX + remoteId;
+      addressBookSlots.add(Integer.valueOf(ConsistentHashing.generateHashedId(remoteName, (int)Math.pow(2, HASH_BIT))));
 
       if (remoteName.equals(this.name))
         continue;
@@ -137,30 +261,36 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
   }
 
   /**
-   * Current node leave the network, handover its keys and other nodes rebuild the ring structure
+   * Current node leave the network, handover its keys and other nodes rebuild the ring structure. The handoff runs
+   * ahead of queued movement jobs and unthrottled, so leaving takes seconds.
    */
   public void leave() {
     try {
-      // Hand over storage to successors
-      for (String key : storage.keySet()) {
-        // Always keep 3 replicas
-        if (successor.getSuccessor().getLocal(key) != null && successor.getLocal(key) != null) {
-          predecessor.putLocal(key, storage.get(key));
-        } else if (successor.getSuccessor().getLocal(key) == null && successor.getLocal(key) != null) {
-          successor.getSuccessor().putLocal(key, storage.get(key));
-        } else {
-          successor.putLocal(key, storage.get(key));
-        }
-      }
-
       ArrayList<NodeInterface> nodeList = getAllNodes();
       nodeList.remove(nodeList.indexOf(this));
 
+      // Hand over the slots of the nodes becoming new replica holders
+      final HashMap<Integer, NodeInterface> membershipTable = this.membershipTable;
+      ArrayList<Integer> ringBefore = new ArrayList<>(membershipTable.keySet());
+      Collections.sort(ringBefore);
+      ArrayList<Integer> ringAfter = new ArrayList<>(ringBefore);
+      ringAfter.remove(Integer.valueOf(hashedId));
+      final MovePlan plan = nodeList.isEmpty()
+        ? new MovePlan() : planRingChange(ringBefore, ringAfter, Integer.valueOf(hashedId), null);
+      // Only unlink once every replica has landed
+      if (!plan.isEmpty()) {
+        PartitionExecutor.await(dataMover.submitUrgent(() -> {
+          dataMover.track(plan, membershipTable);
+          dataMover.copy(plan, membershipTable, false);
+          return null;
+        }));
+      }
+
       // Exit the ring
       successor.setPredecessor(predecessor);
       predecessor.setSuccessor(successor);
-      predecessor = this;
-      successor = this;
+      setPredecessor(this);
+      setSuccessor(this);
 
       // Update all nodes' membership table, and remove heartbeat
       for (NodeInterface node : nodeList) {
@@ -169,11 +299,158 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
           node.removeHeartBeat(hashedId);
         }
       }
+
+      // Writes that reached this node during the handover, before the others stopped routing here. Coordinators
+      // that have not noticed yet are refused from now on, and send their writes to the new replicas instead.
+      if (!plan.isEmpty()) {
+        buildMembershipTable(new ArrayList<>(nodeList));
+        ArrayList<Integer> slots = new ArrayList<>();
+        for (int slot = 0; slot < (int)Math.pow(2, HASH_BIT); slot++) {
+          slots.add(slot);
+        }
+        fenceSlots(slots);
+
+        PartitionExecutor.await(dataMover.submitUrgent(() -> {
+          try {
+            dataMover.catchUp(plan, membershipTable);
+          } finally {
+            dataMover.untrack(plan, membershipTable);
+          }
+          HashMap<Integer, NodeInterface> remainingTable = new HashMap<>(membershipTable);
+          remainingTable.remove(Integer.valueOf(hashedId));
+          dataMover.settle(remainingTable);
+          return null;
+        }));
+      }
     } catch (Exception leaveE) {
       System.err.println("[Leave Exception]" + leaveE);
     }
   }
 
+  /**
+   * Plan the data movement of a token changing place or leaving the ring, so that each slot keeps its full replica
+   * set. Slots are copied from the node whose token changes whenever it replicates them.
+   * @param ringBefore hashed id values of the nodes in ascending order
+   * @param ringAfter hashed id values of the nodes in ascending order, once the token changed
+   * @param oldValue token before the change
+   * @param newValue token after the change, null if the node leaves the ring
+   * @return move plan, by hashed id value before the change
+   */
+  private MovePlan planRingChange(ArrayList<Integer> ringBefore, ArrayList<Integer> ringAfter, Integer oldValue,
+    Integer newValue) {
+    MovePlan plan = new MovePlan();
+    for (int slot = 0; slot < (int)Math.pow(2, HASH_BIT); slot++) {
+      ArrayList<Integer> replicasBefore = ConsistentHashing.findReplicaIds(String.valueOf(slot), ringBefore, replicationFactor);
+      ArrayList<Integer> replicasAfter = ConsistentHashing.findReplicaIds(String.valueOf(slot), ringAfter, replicationFactor);
+      // Compare nodes rather than tokens
+      int movedIndex = replicasAfter.indexOf(newValue);
+      if (movedIndex >= 0) {
+        replicasAfter.set(movedIndex, oldValue);
+      }
+
+      Integer sourceId = replicasBefore.contains(oldValue) ? oldValue : replicasBefore.get(0);
+      for (Integer replicaId : replicasAfter) {
+        if (!replicasBefore.contains(replicaId)) {
+          plan.copy(replicaId, sourceId, slot);
+        }
+      }
+      for (Integer replicaId : replicasBefore) {
+        // A leaving node keeps its keys
+        if (!replicasAfter.contains(replicaId) && (newValue != null || !replicaId.equals(oldValue))) {
+          plan.remove(replicaId, slot);
+        }
+      }
+    }
+    return plan;
+  }
+
+  /**
+   * Plan the data movement bringing every slot to its replicas under the current membership. Every distinct copy of a
+   * slot held anywhere is merged into each replica holding a different one, and the newer version of a key wins.
+   * Nodes that do not replicate a slot drop it once all copies have landed.
+   * @param membershipTable
+   * @return move plan
+   * @throws RemoteException if a node could not report its keys
+   */
+  private MovePlan planRebalance(HashMap<Integer, NodeInterface> membershipTable) throws RemoteException {
+    ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+    HashMap<Integer, long[]> keyCounts = new HashMap<>();
+    HashMap<Integer, long[]> digests = new HashMap<>();
+    for (Integer hashedIdValue : ring) {
+      keyCounts.put(hashedIdValue, membershipTable.get(hashedIdValue).getSlotKeyCounts());
+      digests.put(hashedIdValue, membershipTable.get(hashedIdValue).getSlotDigests());
+    }
+
+    MovePlan plan = new MovePlan();
+    for (int slot = 0; slot < (int)Math.pow(2, HASH_BIT); slot++) {
+      ArrayList<Integer> replicaIds = ConsistentHashing.findReplicaIds(String.valueOf(slot), ring, replicationFactor);
+      // One source per distinct copy of the slot, replicas preferred
+      ArrayList<Integer> candidateIds = new ArrayList<>(replicaIds);
+      candidateIds.addAll(ring);
+      HashMap<Long, Integer> copySources = new HashMap<>();
+      for (Integer candidateId : candidateIds) {
+        long digest = digests.get(candidateId)[slot];
+        if (keyCounts.get(candidateId)[slot] > 0 && !copySources.containsKey(digest)) {
+          copySources.put(digest, candidateId);
+        }
+      }
+
+      for (Integer replicaId : replicaIds) {
+        for (Long digest : copySources.keySet()) {
+          if (digest != digests.get(replicaId)[slot]) {
+            plan.copy(replicaId, copySources.get(digest), slot);
+          }
+        }
+      }
+      for (Integer hashedIdValue : ring) {
+        if (!replicaIds.contains(hashedIdValue) && keyCounts.get(hashedIdValue)[slot] > 0) {
+          plan.remove(hashedIdValue, slot);
+        }
+      }
+    }
+    return plan;
+  }
+
+  /**
+   * Move the token of a node within the arc between its neighbours. Slots changing replicas are copied to their new
+   * replicas in the background at the throttled rate, then every node switches to the new token. Nodes losing a slot
+   * refuse further writes to it, so coordinators still on the old token retry on the new replicas. Writes the
+   * sources took during the copy are recorded and caught up, then nodes that stopped replicating a slot drop it.
+   * @param oldHashedId
+   * @param newHashedId
+   */
+  public void moveToken(final String oldHashedId, final String newHashedId) {
+    final HashMap<Integer, NodeInterface> membershipTable = this.membershipTable;
+    ArrayList<Integer> ringBefore = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ringBefore);
+    ArrayList<Integer> ringAfter = new ArrayList<>(ringBefore);
+    ringAfter.set(ringAfter.indexOf(Integer.valueOf(oldHashedId)), Integer.valueOf(newHashedId));
+    final MovePlan plan = planRingChange(ringBefore, ringAfter, Integer.valueOf(oldHashedId), Integer.valueOf(newHashedId));
+
+    try {
+      PartitionExecutor.await(dataMover.submit(() -> {
+        dataMover.track(plan, membershipTable);
+        try {
+          dataMover.copy(plan, membershipTable);
+          for (NodeInterface node : membershipTable.values()) {
+            node.reassignToken(oldHashedId, newHashedId);
+          }
+          dataMover.fence(plan, membershipTable);
+          dataMover.catchUp(plan, membershipTable);
+        } finally {
+          dataMover.untrack(plan, membershipTable);
+        }
+        dataMover.settle(this.membershipTable);
+        dataMover.remove(plan, membershipTable);
+        metrics.increment("token.moves");
+        return null;
+      }));
+    } catch (RemoteException moveTokenE) {
+      System.err.println("[Move Token Exception]" + moveTokenE);
+    }
+  }
+
   /**
    * Get all the nodes in the network.
    * @return An ArrayList of nodes
@@ -198,42 +475,82 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
    * Put a key-value pair into the distributed store
    * @param key
    * @param value
+   * @throws RemoteException if a replica could not be written, busy nodes included
    */
-  public void put(String key, String value) {
-    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, HASH_BIT));
+  public void put(String key, String value) throws RemoteException {
+    put(key, value, 0);
+  }
 
-    try {
-      NodeInterface targetNode = findNodeByHashedId(hashedId);
+  /**
+   * Put a key-value pair expiring after `ttlMillis` into the distributed store
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @throws RemoteException if a replica could not be written, busy nodes included
+   */
+  public void put(String key, String value, long ttlMillis) throws RemoteException {
+    put(key, value.getBytes(StandardCharsets.UTF_8), ttlMillis);
+  }
 
-      boolean putDelay;
-      do {
-        putDelay = false;
+  /**
+   * Put a key and a binary value expiring after `ttlMillis` into the distributed store
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @throws RemoteException if a replica could not be written, busy nodes included
+   */
+  public void put(final String key, final byte[] value, final long ttlMillis) throws RemoteException {
+    awaitRecovery();
+    router.write(key, value, ttlMillis, versionClock.next(), null);
+  }
 
-        try {
-          Thread.sleep(1000);
-        } catch (Exception putDelayE) {
-          System.err.println("[Put Delay Exception]" + putDelayE);
-        }
 
-        for (Integer remoteHasheIdValue : membershipTable.keySet()) {
-          try {
-            if (membershipTable.get(remoteHasheIdValue).getRecoverStatus()) {
-              putDelay = true;
-              break;
-            }
-          } catch (Exception putTraversalE) {
-            System.err.println("[Put Traversal Exception]" + putTraversalE);
-          }
-        }
-      } while (putDelay);
+  /**
+   * Set a key to `value` if it currently holds `expected`, atomically at the primary of the key
+   * @param key
+   * @param expected
+   * @param value
+   * @return true if the key was set
+   * @throws RemoteException if the update could not be applied
+   */
+  public boolean compareAndSet(String key, String expected, String value) throws RemoteException {
+    KeyUpdate update = KeyUpdate.compareAndSet(
+      expected.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    return update(key, update) != null;
+  }
 
-      targetNode.putLocal(key, value);
-      // Back up replicas in predecessor and successor
-      targetNode.getPredecessor().putLocal(key, value);
-      targetNode.getSuccessor().putLocal(key, value);
-    } catch (Exception putE) {
-      System.err.println("[Set Key Exception]" + putE);
-    }
+  /**
+   * Add `delta` to the integer held by a key, atomically at the primary of the key. An absent key counts as 0.
+   * @param key
+   * @param delta
+   * @return value after the increment
+   * @throws RemoteException if the update could not be applied, or the key does not hold an integer
+   */
+  public long increment(String key, long delta) throws RemoteException {
+    return Long.parseLong(new String(update(key, KeyUpdate.increment(delta)), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Append `suffix` to the value of a key, atomically at the primary of the key. An absent key counts as empty.
+   * @param key
+   * @param suffix
+   * @return length of the value after the append, in bytes
+   * @throws RemoteException if the update could not be applied
+   */
+  public int append(String key, String suffix) throws RemoteException {
+    return update(key, KeyUpdate.append(suffix.getBytes(StandardCharsets.UTF_8))).length;
+  }
+
+  /**
+   * Send a read-modify-write to the primary of a key, which applies and replicates it in one round trip
+   * @param key
+   * @param update
+   * @return new value, or null if a compare-and-set did not match
+   * @throws RemoteException if the update could not be applied
+   */
+  private byte[] update(String key, KeyUpdate update) throws RemoteException {
+    awaitRecovery();
+    return router.update(key, update);
   }
 
   /**
@@ -242,17 +559,216 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
    * @return value associated with the key
    */
   public String get(String key) {
-    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, HASH_BIT));
-    String value = null;
+    byte[] value = getBytes(key);
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get a binary value with key from the distributed store
+   * @param key
+   * @return value associated with the key
+   */
+  public byte[] getBytes(String key) {
+    if (readRepair && !chainReplication) {
+      String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, HASH_BIT));
+      return getWithReadRepair(key, getPreferenceList(hashedId));
+    }
+    return router.read(key);
+  }
+
+  /**
+   * Read a key from all its replicas in parallel, return the newest version and bring stale replicas up to date in
+   * the background
+   * @param key
+   * @param replicas
+   * @return newest value associated with the key
+   */
+  private byte[] getWithReadRepair(final String key, ArrayList<NodeInterface> replicas) {
+    ArrayList<Future<VersionedValue>> replies = new ArrayList<>();
+    for (final NodeInterface replica : replicas) {
+      replies.add(readRepairPool.submit(() -> replica.getLocalVersioned(key)));
+    }
+
+    HashMap<NodeInterface, VersionedValue> answers = new HashMap<>();
+    VersionedValue newest = null;
+    for (int i = 0; i < replicas.size(); i++) {
+      try {
+        VersionedValue answer = PartitionExecutor.await(replies.get(i));
+        answers.put(replicas.get(i), answer);
+        if (answer != null && (newest == null || answer.getVersion() > newest.getVersion())) {
+          newest = answer;
+        }
+      } catch (RemoteException getE) {
+        System.err.println("[Get Key Exception]" + getE);
+      }
+    }
+    metrics.increment("repair.reads");
+    if (newest == null) {
+      return null;
+    }
+
+    final ArrayList<NodeInterface> staleReplicas = new ArrayList<>();
+    for (NodeInterface replica : answers.keySet()) {
+      VersionedValue answer = answers.get(replica);
+      if (answer == null || answer.getVersion() < newest.getVersion()) {
+        staleReplicas.add(replica);
+      }
+    }
+    if (!staleReplicas.isEmpty()) {
+      metrics.increment("repair.mismatches");
+      final VersionedValue repairValue = newest;
+      readRepairPool.submit(() -> repair(key, repairValue, staleReplicas));
+    }
+    return newest.getValue();
+  }
+
+  /**
+   * Write the newest version of a key to replicas holding an older one
+   * @param key
+   * @param newest
+   * @param staleReplicas
+   */
+  private void repair(String key, VersionedValue newest, ArrayList<NodeInterface> staleReplicas) {
+    for (NodeInterface replica : staleReplicas) {
+      try {
+        // Repairs share the data movement budget
+        dataMover.throttle(1, DataMover.byteSize(key, newest.getValue()));
+        replica.putLocal(key, newest.getValue(), newest.getTtlMillis(), newest.getVersion());
+        metrics.increment("repair.writes");
+      } catch (RemoteException repairE) {
+        metrics.increment("repair.failures");
+        System.err.println("[Read Repair Exception]" + repairE);
+      } catch (InterruptedException repairE) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the nodes keeping a replica of a hashed id: the primary followed by the next distinct nodes clockwise on the
+   * ring, up to the replication factor
+   * @param hashedId
+   * @return nodes in preference order
+   */
+  public ArrayList<NodeInterface> getPreferenceList(String hashedId) {
+    HashMap<Integer, NodeInterface> membershipTable = this.membershipTable;
+    ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+
+    ArrayList<NodeInterface> preferenceList = new ArrayList<>();
+    for (Integer replicaId : ConsistentHashing.findReplicaIds(hashedId, ring, replicationFactor)) {
+      preferenceList.add(membershipTable.get(replicaId));
+    }
+    return preferenceList;
+  }
+
+  /**
+   * Check whether any node is repairing the ring
+   * @return true if a node has its recovery flag set
+   */
+  private boolean isRecovering() {
+    for (NodeInterface node : membershipTable.values()) {
+      try {
+        if (node.getRecoverStatus()) {
+          return true;
+        }
+      } catch (Exception putTraversalE) {
+        System.err.println("[Put Traversal Exception]" + putTraversalE);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Hold a write while the ring is being repaired, without delaying it otherwise
+   */
+  private void awaitRecovery() {
+    boolean putDelay = isRecovering();
+    while (putDelay) {
+      try {
+        Thread.sleep(1000);
+      } catch (Exception putDelayE) {
+        System.err.println("[Put Delay Exception]" + putDelayE);
+      }
+      putDelay = isRecovering();
+    }
+  }
+
+  /**
+   * Send a write down a chain and wait until its tail acknowledged it
+   * @param head first node of the chain
+   * @param write
+   * @throws RemoteException if the head could not take the write, or the tail did not acknowledge it in time
+   */
+  private void sendChainWrite(NodeInterface head, ChainWrite write) throws RemoteException {
+    long writeId = chainWriteIds.incrementAndGet();
+    final CompletableFuture<Void> acknowledgement = new CompletableFuture<>();
+    chainAcks.put(writeId, acknowledgement);
+    try {
+      getChainLink(head).send(write.acknowledgedTo(this, writeId)).whenComplete((delivered, deliveryE) -> {
+        if (deliveryE != null) {
+          acknowledgement.completeExceptionally(deliveryE);
+        }
+      });
+      awaitChainAck(acknowledgement);
+    } finally {
+      chainAcks.remove(writeId);
+    }
+  }
 
+  /**
+   * Wait for the tail to acknowledge a chain write
+   * @param acknowledgement
+   * @throws RemoteException if the write failed, or was not acknowledged within the timeout
+   */
+  private void awaitChainAck(CompletableFuture<Void> acknowledgement) throws RemoteException {
     try {
-      NodeInterface targetNode = findNodeByHashedId(hashedId);
-      value  = targetNode.getLocal(key);
-    } catch (RemoteException getE) {
-      System.err.println("[Get Key Exception]" + getE);
+      acknowledgement.get(chainAckTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ackE) {
+      metrics.increment("chain.ack.timeouts");
+      throw new RemoteException("Chain write not acknowledged within " + chainAckTimeoutMillis + " ms");
+    } catch (ExecutionException ackE) {
+      if (ackE.getCause() instanceof RemoteException) {
+        throw (RemoteException) ackE.getCause();
+      }
+      throw new RemoteException("Chain write failed", ackE.getCause());
+    } catch (InterruptedException ackE) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Chain write interrupted", ackE);
     }
+  }
+
+  /**
+   * Get the link batching chain writes to `nextNode`, creating it on first use
+   * @param nextNode
+   * @return chain link
+   */
+  private ChainLink getChainLink(NodeInterface nextNode) {
+    ChainLink chainLink = chainLinkMap.get(nextNode);
+    if (chainLink == null) {
+      chainLinkMap.putIfAbsent(nextNode, new ChainLink(nextNode));
+      chainLink = chainLinkMap.get(nextNode);
+    }
+    return chainLink;
+  }
 
-    return value;
+  /**
+   * Iterate keys of the whole distributed store in sorted order
+   * @param startKey first key to return (inclusive), empty to start from the smallest key
+   * @param prefix only return keys starting with `prefix`, empty for all keys
+   * @return iterator pulling keys from all nodes page by page
+   */
+  public KeyScanner scan(String startKey, String prefix) {
+    return new KeyScanner(membershipTable.values(), startKey, prefix, SCAN_PAGE_SIZE);
+  }
+
+  /**
+   * Iterate keys stored in this node in sorted order
+   * @return iterator pulling local keys page by page
+   */
+  public KeyScanner scanLocalKeys() {
+    return new KeyScanner(Collections.<NodeInterface>singletonList(this), "", "", SCAN_PAGE_SIZE);
   }
 
   /**
@@ -265,16 +781,10 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
     ArrayList<NodeInterface> owners = new ArrayList<>();
 
     try {
-      NodeInterface targetNode = findNodeByHashedId(hashedId);
-      if (targetNode.getLocal(key) != null) {
-        owners.add(targetNode);
-      }
-      // Check replicas
-      if (targetNode.getPredecessor().getLocal(key) != null) {
-        owners.add(targetNode.getPredecessor());
-      }
-      if (targetNode.getSuccessor().getLocal(key) != null) {
-        owners.add(targetNode.getSuccessor());
+      for (NodeInterface replica : getPreferenceList(hashedId)) {
+        if (replica.getLocal(key) != null) {
+          owners.add(replica);
+        }
       }
     } catch (RemoteException findOwnersE) {
       System.err.println("[Find Owners Exception]" + findOwnersE);
@@ -283,12 +793,128 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
     return owners;
   }
 
+  /**
+   * Write the keys stored in this node to snapshot files in `dir`, one file per ring range
+   * @param dir
+   * @return number of keys written
+   * @throws IOException
+   */
+  public long exportSnapshot(final String dir) throws IOException {
+    final ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+    final HashMap<Integer, SnapshotFile.Writer> writers = new HashMap<>();
+    final HashMap<Integer, Integer> parts = new HashMap<>();
+    final long[] count = {0};
+    new File(dir).mkdirs();
+
+    try {
+      // Local keys come in key order, so every range file is sorted as well
+      storage.forEachEntry((key, value, version, expireAt) -> {
+        String keyHashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, HASH_BIT));
+        int range = ConsistentHashing.findPrimaryIndex(Integer.parseInt(keyHashedId), ring);
+        SnapshotFile.Writer writer = writers.get(range);
+        if (writer == null || writer.size() > SnapshotFile.PART_BYTES) {
+          if (writer != null) {
+            writer.close();
+          }
+          int part = parts.containsKey(range) ? parts.get(range) : 0;
+          parts.put(range, part + 1);
+          int fromSlot = ring.get((range - 1 + ring.size()) % ring.size());
+          int toSlot = ring.get(range);
+          String path = dir + File.separator + SnapshotFile.fileName(name + ".", fromSlot, toSlot, part);
+          writer = new SnapshotFile.Writer(path, fromSlot, toSlot);
+          writers.put(range, writer);
+        }
+        writer.append(key, value, version, expireAt);
+        count[0]++;
+      });
+    } finally {
+      for (SnapshotFile.Writer writer : writers.values()) {
+        writer.close();
+      }
+    }
+    return count[0];
+  }
+
+  /**
+   * Load the keys this node replicates from the snapshot files in `dir`. Files of ranges this node does not
+   * replicate are skipped, and keys never overwrite a newer version already stored.
+   * @param dir
+   * @return number of keys loaded
+   * @throws IOException
+   */
+  public long importSnapshot(String dir) throws IOException {
+    File[] snapshotFiles = new File(dir).listFiles((parent, fileName) -> fileName.endsWith(SnapshotFile.EXTENSION));
+    if (snapshotFiles == null) {
+      throw new FileNotFoundException(dir);
+    }
+
+    long count = 0;
+    for (File snapshotFile : snapshotFiles) {
+      try (SnapshotFile.Reader reader = new SnapshotFile.Reader(snapshotFile.getPath())) {
+        if (!replicatesRange(reader.getFromSlot(), reader.getToSlot())) {
+          continue;
+        }
+
+        KeyValueBatch batch = new KeyValueBatch();
+        long now = System.currentTimeMillis();
+        while (reader.next()) {
+          long expireAt = reader.getExpireAt();
+          String keyHashedId = ConsistentHashing.generateHashedId(reader.getKey(), (int)Math.pow(2, HASH_BIT));
+          if ((expireAt > 0 && expireAt <= now) || !replicates(keyHashedId)) {
+            continue;
+          }
+          batch.put(reader.getKey(), reader.getValue(), expireAt > 0 ? expireAt - now : 0, reader.getVersion());
+          if (batch.size() == IMPORT_BATCH_SIZE) {
+            putLocalBatch(batch);
+            count += batch.size();
+            batch = new KeyValueBatch();
+          }
+        }
+        if (!batch.isEmpty()) {
+          putLocalBatch(batch);
+          count += batch.size();
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Check whether this node keeps a replica of a hashed id
+   * @param hashedId
+   * @return true if this node is in the preference list of `hashedId`
+   */
+  private boolean replicates(String hashedId) {
+    ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+    return ConsistentHashing.findReplicaIds(hashedId, ring, replicationFactor).contains(Integer.valueOf(this.hashedId));
+  }
+
+  /**
+   * Check whether this node keeps a replica of any slot of the ring range (fromSlot, toSlot]
+   * @param fromSlot
+   * @param toSlot
+   * @return true if any slot of the range is replicated here
+   */
+  private boolean replicatesRange(int fromSlot, int toSlot) {
+    int space = (int)Math.pow(2, HASH_BIT);
+    int slot = fromSlot;
+    do {
+      slot = (slot + 1) % space;
+      if (replicates(String.valueOf(slot))) {
+        return true;
+      }
+    } while (slot != toSlot);
+    return false;
+  }
+
   /**
    * Get heartBeaterTaskMap. Mainly for debugging
    * @return heartbeater task map in HashMap
    */
   public HashMap<String, HeartBeater> getHeartBeaterTaskMap() {
-    return heartBeaterTaskMap;
+    return new HashMap<>(heartBeaterTaskMap);
   }
 
   /* NodeInterface Implementation */
@@ -296,7 +922,7 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
   @Override
   public void buildMembershipTable(ArrayList<NodeInterface> nodeList) throws RemoteException {
     Collections.sort(nodeList, new NodeInterfaceComparator());
-    HashMap<Integer, NodeInterface> membershipTable = new HashMap<>();
+    final HashMap<Integer, NodeInterface> membershipTable = new HashMap<>();
 
     try {
       for (NodeInterface curNode : nodeList ) {
@@ -307,61 +933,69 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
       System.err.println("Exception8: " + e);
     }
 
-    this.membershipTable = membershipTable;
+    partitionExecutor.executeControl(() -> {
+      HashMap<Integer, NodeInterface> previousTable = this.membershipTable;
+      this.membershipTable = membershipTable;
+      this.routingVersion++;
+      membershipChanged(previousTable, hashedId);
+      return null;
+    });
   }
 
   @Override
   public void updateMembershipTable() throws RemoteException {
-    ArrayList<NodeInterface> nodeList = getAllNodes();
-    for (NodeInterface node : nodeList) {
-      if (membershipTable.containsKey(Integer.parseInt(node.getHashedId()))) {
-        continue;
-      }
-      membershipTable.put(Integer.parseInt(node.getHashedId()), node);
+    // Resolve remote ids before handing over to the control executor, which never waits on other nodes
+    final HashMap<Integer, NodeInterface> joinedNodes = new HashMap<>();
+    for (NodeInterface node : getAllNodes()) {
+      joinedNodes.put(Integer.parseInt(node.getHashedId()), node);
     }
+
+    partitionExecutor.executeControl(() -> {
+      HashMap<Integer, NodeInterface> previousTable = this.membershipTable;
+      HashMap<Integer, NodeInterface> membershipTable = new HashMap<>(previousTable);
+      for (Integer hashedIdValue : joinedNodes.keySet()) {
+        if (!membershipTable.containsKey(hashedIdValue)) {
+          membershipTable.put(hashedIdValue, joinedNodes.get(hashedIdValue));
+        }
+      }
+      this.membershipTable = membershipTable;
+      this.routingVersion++;
+      membershipChanged(previousTable, hashedId);
+      return null;
+    });
   }
 
   @Override
   public void rebalance() throws RemoteException {
-    // Get all keys in the system
-    HashMap<String, String> allKeysMap = new HashMap<>();
-    try {
-      for (Integer hashedIdValue : membershipTable.keySet()) {
-        HashMap<String, String> localStorage = membershipTable.get(hashedIdValue).getLocalStorage();
-        for (String key : localStorage.keySet()) {
-          allKeysMap.put(key, localStorage.get(key));
+    // Keys move in the background at the throttled rate, while writes already go to the new replicas and reads of
+    // the moving slots still reach their former holders
+    dataMover.submit(() -> {
+      try {
+        HashMap<Integer, NodeInterface> membershipTable = this.membershipTable;
+        MovePlan plan = planRebalance(membershipTable);
+        if (!plan.isEmpty()) {
+          // Clients refresh their routing table only every so often, and write to the former holders until then
+          dataMover.track(plan, membershipTable);
+          try {
+            dataMover.copy(plan, membershipTable);
+            dataMover.fence(plan, membershipTable);
+            dataMover.catchUp(plan, membershipTable);
+          } finally {
+            dataMover.untrack(plan, membershipTable);
+          }
         }
-      }
-    } catch (Exception getAllKeyE) {
-      System.err.println("[Get All Keys Exception]" + getAllKeyE);
-    }
-
-    // Remove all keys in the system
-    try {
-      for (Integer hashedIdValue : membershipTable.keySet()) {
-        HashMap<String, String> localStorageReplica = new HashMap<>(membershipTable.get(hashedIdValue).getLocalStorage());
-        for (String key : localStorageReplica.keySet()) {
-          membershipTable.get(hashedIdValue).removeLocal(key);
+        // Replicas read their new slots through from the former holders until every copy has landed
+        dataMover.settle(membershipTable);
+        if (plan.isEmpty()) {
+          return null;
         }
+        dataMover.remove(plan, membershipTable);
+        metrics.increment("rebalance.moves");
+      } catch (Exception rebalanceE) {
+        System.err.println("[Rebalance Exception]" + rebalanceE);
       }
-    } catch (Exception getAllKeyE) {
-      System.err.println("[Remove All Keys Exception]" + getAllKeyE);
-    }
-
-    // Distribute all keys
-    try {
-      for (String key : allKeysMap.keySet()) {
-        String value = allKeysMap.get(key);
-        String keyHashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT));
-        NodeInterface keyHashedNode = findNodeByHashedId(keyHashedId);
-
-        keyHashedNode.putLocal(key, value);
-        keyHashedNode.getPredecessor().putLocal(key, value);
-        keyHashedNode.getSuccessor().putLocal(key, value);
-      }
-    } catch (Exception distributeKeyE) {
-      System.err.println("[Distribute Keys Exception]" + distributeKeyE);
-    }
+      return null;
+    });
   }
 
   @Override
@@ -380,8 +1014,11 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
   }
 
   @Override
-  public void setRecoverStatus(boolean flag) throws RemoteException {
-    this.recoverStatus = flag;
+  public void setRecoverStatus(final boolean flag) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      this.recoverStatus = flag;
+      return null;
+    });
   }
 
   @Override
@@ -389,14 +1026,96 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
     return this.membershipTable;
   }
 
+  /**
+   * Get the hashed ids of the nodes in the address book, online or not. A node always joins at the hashed id of its
+   * name, so no token may move onto one.
+   * @return hashed id values
+   */
+  public Set<Integer> getAddressBookSlots() {
+    return addressBookSlots;
+  }
+
+  @Override
+  public long getRoutingVersion() throws RemoteException {
+    return this.routingVersion;
+  }
+
+  @Override
+  public RoutingTable getRoutingTable() throws RemoteException {
+    // Version first, so a table replaced in between is fetched again on the next refresh
+    long routingVersion = this.routingVersion;
+    return new RoutingTable(routingVersion, this.membershipTable, replicationFactor, chainReplication);
+  }
+
+  @Override
+  public void removeMembership(final Integer hashedIdValue) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      HashMap<Integer, NodeInterface> previousTable = this.membershipTable;
+      HashMap<Integer, NodeInterface> membershipTable = new HashMap<>(previousTable);
+      membershipTable.remove(hashedIdValue);
+      this.membershipTable = membershipTable;
+      this.routingVersion++;
+      membershipChanged(previousTable, hashedId);
+      return null;
+    });
+  }
+
+  @Override
+  public KeyValueBatch getLocalStorage() throws RemoteException {
+    return storage.snapshot();
+  }
+
+  @Override
+  public HashMap<String, Long> getMetrics() throws RemoteException {
+    return metrics.snapshot();
+  }
+
+  @Override
+  public SlotLoad getSlotLoad() throws RemoteException {
+    long[] requests = new long[slotRequests.length()];
+    for (int slot = 0; slot < requests.length; slot++) {
+      requests[slot] = slotRequests.getAndSet(slot, 0);
+    }
+    return new SlotLoad(requests, storage.getSlotKeyCounts());
+  }
+
+  @Override
+  public long[] getSlotKeyCounts() throws RemoteException {
+    return storage.getSlotKeyCounts();
+  }
+
   @Override
-  public void removeMembership(Integer hashedIdValue) throws RemoteException {
-    membershipTable.remove(hashedIdValue);
+  public long[] getSlotDigests() throws RemoteException {
+    return storage.getSlotDigests();
   }
 
   @Override
-  public HashMap<String, String> getLocalStorage() throws RemoteException {
-    return this.storage;
+  public void reassignToken(final String oldHashedId, final String newHashedId) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      HashMap<Integer, NodeInterface> previousTable = this.membershipTable;
+      String previousHashedId = this.hashedId;
+      HashMap<Integer, NodeInterface> membershipTable = new HashMap<>(previousTable);
+      NodeInterface movedNode = membershipTable.remove(Integer.parseInt(oldHashedId));
+      if (movedNode != null) {
+        membershipTable.put(Integer.parseInt(newHashedId), movedNode);
+      }
+      this.membershipTable = membershipTable;
+      this.routingVersion++;
+
+      // Heartbeats to the moved node keep running, filed under its new token
+      HeartBeater heartBeater = heartBeaterTaskMap.remove(oldHashedId);
+      if (heartBeater != null) {
+        heartBeater.setRemoteNodeId(newHashedId);
+        heartBeaterTaskMap.put(newHashedId, heartBeater);
+        heartBeaterTimerMap.put(newHashedId, heartBeaterTimerMap.remove(oldHashedId));
+      }
+
+      if (this.hashedId.equals(oldHashedId)) {
+        this.hashedId = newHashedId;
+      }
+      membershipChanged(previousTable, previousHashedId);
+      return null;
+    });
   }
 
   @Override
@@ -410,71 +1129,480 @@ public class Node extends UnicastRemoteObject implements NodeInterface {
   }
 
   @Override
-  public void setSuccessor(NodeInterface succ) throws RemoteException {
-    this.successor = succ;
+  public void setSuccessor(final NodeInterface succ) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      this.successor = succ;
+      return null;
+    });
   }
 
   @Override
-  public void setPredecessor(NodeInterface pred) throws RemoteException {
-    this.predecessor = pred;
+  public void setPredecessor(final NodeInterface pred) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      this.predecessor = pred;
+      return null;
+    });
   }
 
   @Override
   public NodeInterface findNodeByHashedId(String hashedId) throws RemoteException {
     ArrayList<Integer> hashedIdList = new ArrayList<>(membershipTable.keySet());
     Collections.sort(hashedIdList);
-    int hashedIdValue = Integer.parseInt(hashedId);
-    NodeInterface targetNode = this;
+    int primaryIndex = ConsistentHashing.findPrimaryIndex(Integer.parseInt(hashedId), hashedIdList);
+
+    return membershipTable.get(hashedIdList.get(primaryIndex));
+  }
+
+  @Override
+  public void putLocal(final String key, final byte[] value) throws RemoteException {
+    putLocal(key, value, 0);
+  }
+
+  @Override
+  public void putLocal(final String key, final byte[] value, final long ttlMillis) throws RemoteException {
+    putLocal(key, value, ttlMillis, versionClock.next());
+  }
+
+  @Override
+  public void putLocal(final String key, final byte[] value, final long ttlMillis, final long version)
+    throws RemoteException {
+    countRequest(key);
+    checkFence(key);
+    admissionController.call(() -> partitionExecutor.execute(key, () -> {
+      storage.put(key, value, ttlMillis, version);
+      trackWrite(key);
+      return null;
+    }));
+  }
+
+  @Override
+  public void putLocalBatch(KeyValueBatch batch) throws RemoteException {
+    partitionExecutor.executeBatch(batch, share -> storage.putAll(share));
+  }
 
-    if (hashedIdValue <= hashedIdList.get(0) || hashedIdValue > hashedIdList.get(hashedIdList.size() - 1)) {
-      targetNode = membershipTable.get(hashedIdList.get(0));
-    } else {
-      for (int i = 1; i < hashedIdList.size(); i++) {
-        if (hashedIdList.get(i) >= hashedIdValue) {
-          targetNode = membershipTable.get(hashedIdList.get(i));
-          break;
+  @Override
+  public byte[] applyUpdate(final String key, final KeyUpdate update) throws RemoteException {
+    countRequest(key);
+    checkFence(key);
+    // A slot still moving in, or a key missed here, may hold a newer value on the other replicas
+    final VersionedValue replicated = admissionController.call(() -> readReplicas(key));
+    // Read and write in one task of the key's partition, so no other write to the key slips in between
+    VersionedValue updated = admissionController.call(() -> partitionExecutor.execute(key, () -> {
+      VersionedValue current = storage.getVersioned(key);
+      if (replicated != null && (current == null || replicated.getVersion() > current.getVersion())) {
+        current = replicated;
+      }
+      byte[] value = update.apply(current == null ? null : current.getValue());
+      if (value == null) {
+        return null;
+      }
+      long ttlMillis = update.keepsTtl() && current != null ? current.getTtlMillis() : 0;
+      long version = current == null ? versionClock.next() : versionClock.nextAfter(current.getVersion());
+      storage.put(key, value, ttlMillis, version);
+      trackWrite(key);
+      return new VersionedValue(value, version, ttlMillis);
+    }));
+    if (updated == null) {
+      metrics.increment("update.mismatches");
+      return null;
+    }
+    metrics.increment("update.applied");
+
+    // Replicate outside the partition, versions keep replicas in update order
+    try {
+      router.write(key, updated.getValue(), updated.getTtlMillis(), updated.getVersion(), this);
+    } catch (RemoteException replicateE) {
+      // Neither busy nor moved, the update was applied here and must not be sent again
+      metrics.increment("update.unreplicated");
+      throw new ReplicationException("Update of " + key + " applied but not replicated", replicateE);
+    }
+    return updated.getValue();
+  }
+
+  @Override
+  public void chainPut(final ArrayList<ChainWrite> writes) throws RemoteException {
+    admissionController.call(() -> {
+      applyChainWrites(writes);
+      return null;
+    });
+  }
+
+  /**
+   * Apply chain writes locally and forward them down their chains, without waiting for the rest of the chains. Writes
+   * reaching their tail are acknowledged to their origin. Writes from outside the ring get this node as their origin,
+   * and are waited for, since their sender cannot receive acknowledgements.
+   * @param writes
+   * @throws RemoteException if a write could not be applied, or a write from outside the ring was not acknowledged
+   */
+  private void applyChainWrites(ArrayList<ChainWrite> writes) throws RemoteException {
+    for (ChainWrite write : writes) {
+      checkFence(write.getKey());
+    }
+
+    HashMap<Long, CompletableFuture<Void>> clientAcks = new HashMap<>();
+    try {
+      // Apply and forward in arrival order, so writes to a key reach the rest of the chain in the order they were applied
+      ArrayList<Future<ChainWrite>> applied = new ArrayList<>();
+      for (ChainWrite write : writes) {
+        if (write.getOrigin() == null) {
+          long writeId = chainWriteIds.incrementAndGet();
+          CompletableFuture<Void> acknowledgement = new CompletableFuture<>();
+          chainAcks.put(writeId, acknowledgement);
+          clientAcks.put(writeId, acknowledgement);
+          write = write.acknowledgedTo(this, writeId);
         }
+        final ChainWrite acceptedWrite = write;
+        countRequest(write.getKey());
+        applied.add(partitionExecutor.submit(write.getKey(), () -> {
+          storage.put(acceptedWrite.getKey(), acceptedWrite.getValue(), acceptedWrite.getTtlMillis(),
+            acceptedWrite.getVersion());
+          trackWrite(acceptedWrite.getKey());
+          if (!acceptedWrite.isTail()) {
+            // A write the next node refused is reported to its origin, which sends it again
+            getChainLink(acceptedWrite.getNextNode()).send(acceptedWrite.forward())
+              .whenCompleteAsync((delivered, deliveryE) -> {
+                if (deliveryE != null) {
+                  failChainWrite(acceptedWrite, deliveryE);
+                }
+              });
+          }
+          return acceptedWrite;
+        }));
+      }
+
+      // Writes ending here are acknowledged once per origin
+      HashMap<NodeInterface, ArrayList<Long>> tailAcks = new HashMap<>();
+      for (Future<ChainWrite> appliedWrite : applied) {
+        ChainWrite write = PartitionExecutor.await(appliedWrite);
+        if (write.isTail()) {
+          if (!tailAcks.containsKey(write.getOrigin())) {
+            tailAcks.put(write.getOrigin(), new ArrayList<Long>());
+          }
+          tailAcks.get(write.getOrigin()).add(write.getWriteId());
+        }
+      }
+      for (NodeInterface origin : tailAcks.keySet()) {
+        try {
+          origin.chainAck(tailAcks.get(origin), null);
+        } catch (RemoteException ackE) {
+          // The origin times out on its own
+          System.err.println("[Chain Ack Exception]" + ackE);
+        }
+      }
+
+      for (CompletableFuture<Void> acknowledgement : clientAcks.values()) {
+        awaitChainAck(acknowledgement);
+      }
+    } finally {
+      chainAcks.keySet().removeAll(clientAcks.keySet());
+    }
+  }
+
+  /**
+   * Tell the origin of a chain write that it could not be forwarded
+   * @param write
+   * @param deliveryE
+   */
+  private void failChainWrite(ChainWrite write, Throwable deliveryE) {
+    RemoteException failure = deliveryE instanceof RemoteException
+      ? (RemoteException) deliveryE : new RemoteException("Chain write not forwarded", deliveryE);
+    try {
+      write.getOrigin().chainAck(new ArrayList<>(Collections.singletonList(write.getWriteId())), failure);
+    } catch (RemoteException ackE) {
+      // The origin times out on its own
+      System.err.println("[Chain Ack Exception]" + ackE);
+    }
+  }
+
+  @Override
+  public void chainAck(ArrayList<Long> writeIds, RemoteException failure) throws RemoteException {
+    for (Long writeId : writeIds) {
+      CompletableFuture<Void> acknowledgement = chainAcks.get(writeId);
+      if (acknowledgement == null) {
+        continue;
+      }
+      if (failure == null) {
+        acknowledgement.complete(null);
+      } else {
+        acknowledgement.completeExceptionally(failure);
       }
     }
+  }
+
+  @Override
+  public byte[] getLocal(final String key) throws RemoteException {
+    countRequest(key);
+    final ArrayList<NodeInterface> sources = pendingSlots.isEmpty() ? null : pendingSlots.get(slotOf(key));
+    if (sources != null) {
+      // The keys of the slot may not have landed yet
+      metrics.increment("pending.reads");
+      VersionedValue newest = admissionController.call(() -> readThrough(key, sources));
+      return newest == null ? null : newest.getValue();
+    }
+    return admissionController.call(() -> storage.get(key));
+  }
 
-    return targetNode;
+  @Override
+  public VersionedValue getLocalVersioned(final String key) throws RemoteException {
+    countRequest(key);
+    return admissionController.call(() -> storage.getVersioned(key));
   }
 
   @Override
-  public void putLocal(String key, String value) throws RemoteException {
-    storage.put(key, value);
+  public ArrayList<String> scanLocal(final String startKey, final String prefix, final int limit)
+    throws RemoteException {
+    return admissionController.call(() -> storage.scan(startKey, prefix, limit));
   }
 
   @Override
-  public String getLocal(String key) throws RemoteException {
-    return storage.get(key);
+  public KeyValueBatch getLocalSlots(ArrayList<Integer> slots, String startKey, int limit) throws RemoteException {
+    return storage.scanSlots(new HashSet<>(slots), startKey, limit);
   }
 
   @Override
-  public void removeLocal(String key) throws RemoteException {
-    storage.remove(key);
+  public void removeLocalSlots(ArrayList<Integer> slots) throws RemoteException {
+    fenceSlots(slots);
+    storage.removeSlots(new HashSet<>(slots));
+  }
+
+  @Override
+  public void fenceSlots(final ArrayList<Integer> slots) throws RemoteException {
+    // On the control executor, so a membership change lifting fences cannot slip in between
+    partitionExecutor.executeControl(() -> {
+      for (Integer slot : slots) {
+        if (!replicates(String.valueOf(slot))) {
+          fencedSlots.add(slot);
+        }
+      }
+      return null;
+    });
   }
 
   @Override
-  public void setupHeartBeat(String hashedId) throws RemoteException {
-    if (!heartBeaterTaskMap.containsKey(hashedId)) {
-      NodeInterface remoteNode = membershipTable.get(Integer.parseInt(hashedId));
+  public void settleSlots(final ArrayList<Integer> ring) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      ArrayList<Integer> currentRing = new ArrayList<>(membershipTable.keySet());
+      Collections.sort(currentRing);
+      // Slots that became pending under a later membership wait for the job moving them
+      if (currentRing.equals(ring)) {
+        pendingSlots.clear();
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public void trackSlots(ArrayList<Integer> slots) throws RemoteException {
+    trackedSlots.addAll(slots);
+  }
+
+  @Override
+  public KeyValueBatch takeTrackedWrites(ArrayList<Integer> slots) throws RemoteException {
+    KeyValueBatch writes = new KeyValueBatch();
+    for (final String key : trackedKeys) {
+      if (!slots.contains(slotOf(key))) {
+        continue;
+      }
+      // In the key's partition, so a write is either read here or recorded again for the next call
+      VersionedValue current = partitionExecutor.execute(key, () -> {
+        trackedKeys.remove(key);
+        return storage.getVersioned(key);
+      });
+      if (current != null) {
+        writes.put(key, current.getValue(), current.getTtlMillis(), current.getVersion());
+      }
+    }
+    return writes;
+  }
+
+  @Override
+  public void untrackSlots(ArrayList<Integer> slots) throws RemoteException {
+    trackedSlots.removeAll(slots);
+    trackedKeys.removeIf(key -> slots.contains(slotOf(key)));
+  }
+
+  /**
+   * Refuse a foreground write to a slot this node handed over
+   * @param key
+   * @throws SlotMovedException if the slot of the key is fenced
+   */
+  private void checkFence(String key) throws SlotMovedException {
+    if (!fencedSlots.isEmpty() && fencedSlots.contains(slotOf(key))) {
+      metrics.increment("moved.refused");
+      throw new SlotMovedException("Slot of " + key + " moved away from " + name);
+    }
+  }
+
+  /**
+   * Record a write to a slot being copied away. Runs in the key's partition, after the write was stored.
+   * @param key
+   */
+  private void trackWrite(String key) {
+    if (!trackedSlots.isEmpty() && trackedSlots.contains(slotOf(key))) {
+      trackedKeys.add(key);
+    }
+  }
+
+  /**
+   * Let writes in again to the fenced slots this node replicates under the current membership. Runs on the control
+   * executor after each membership change.
+   */
+  private void liftFences() {
+    if (!fencedSlots.isEmpty()) {
+      fencedSlots.removeIf(slot -> replicates(String.valueOf(slot)));
+    }
+  }
+
+  /**
+   * Bring the fenced and pending slots up to date after the membership table was replaced. Slots this node starts
+   * replicating are pending until a movement job copied them in, and are read through from the nodes that held them
+   * under the previous membership until then. Runs on the control executor.
+   * @param previousTable membership table before the change
+   * @param previousHashedId hashed id of this node before the change
+   */
+  private void membershipChanged(HashMap<Integer, NodeInterface> previousTable, String previousHashedId) {
+    liftFences();
+
+    ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+    ArrayList<Integer> previousRing = new ArrayList<>(previousTable.keySet());
+    Collections.sort(previousRing);
+    Integer self = Integer.valueOf(hashedId);
+    Integer previousSelf = Integer.valueOf(previousHashedId);
+    // A node just joining had no replicas before, the others held its slots
+    boolean joined = !previousRing.contains(previousSelf);
+    if (joined) {
+      previousTable = membershipTable;
+      previousRing = new ArrayList<>(ring);
+      previousRing.remove(self);
+    }
+
+    for (int slot = 0; slot < (int)Math.pow(2, HASH_BIT); slot++) {
+      if (!ConsistentHashing.findReplicaIds(String.valueOf(slot), ring, replicationFactor).contains(self)) {
+        pendingSlots.remove(slot);
+        continue;
+      }
+      ArrayList<Integer> previousReplicaIds = previousRing.isEmpty()
+        ? new ArrayList<Integer>() : ConsistentHashing.findReplicaIds(String.valueOf(slot), previousRing, replicationFactor);
+      if (!joined && previousReplicaIds.contains(previousSelf) && !pendingSlots.containsKey(slot)) {
+        continue;
+      }
+
+      // Still pending from an earlier change, or newly replicated
+      ArrayList<NodeInterface> sources = pendingSlots.containsKey(slot)
+        ? new ArrayList<>(pendingSlots.get(slot)) : new ArrayList<NodeInterface>();
+      for (Integer replicaId : previousReplicaIds) {
+        NodeInterface replica = previousTable.get(replicaId);
+        if (!replicaId.equals(previousSelf) && replica != null && !sources.contains(replica)) {
+          sources.add(replica);
+        }
+      }
+      if (sources.isEmpty()) {
+        pendingSlots.remove(slot);
+      } else {
+        pendingSlots.put(slot, sources);
+      }
+    }
+  }
+
+  /**
+   * Read the newest version of a key from the other replicas, and from the former holders of its slot, if this node
+   * may not hold it: the key is absent here, or its slot is still moving in
+   * @param key
+   * @return newest version elsewhere, or null if this node's copy is authoritative or no other node holds the key
+   */
+  private VersionedValue readReplicas(String key) {
+    ArrayList<NodeInterface> sources = pendingSlots.isEmpty() ? null : pendingSlots.get(slotOf(key));
+    if (sources == null && storage.getVersioned(key) != null) {
+      return null;
+    }
+    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, HASH_BIT));
+    ArrayList<NodeInterface> replicas = getPreferenceList(hashedId);
+    replicas.remove(this);
+    metrics.increment("update.replica.reads");
+    if (sources != null) {
+      for (NodeInterface source : sources) {
+        if (!replicas.contains(source)) {
+          replicas.add(source);
+        }
+      }
+    }
+    return readThrough(key, replicas);
+  }
+
+  /**
+   * Read the newest version of a key held here or by any of `sources`
+   * @param key
+   * @param sources
+   * @return newest version, or null if no node holds the key
+   */
+  private VersionedValue readThrough(String key, ArrayList<NodeInterface> sources) {
+    VersionedValue newest = storage.getVersioned(key);
+    for (NodeInterface source : sources) {
       try {
-        heartBeaterTimerMap.put(hashedId, new Timer(true));
-        heartBeaterTaskMap.put(hashedId, new HeartBeater(this, remoteNode));
-        heartBeaterTimerMap.get(hashedId).schedule(heartBeaterTaskMap.get(hashedId), 0, 500);
-      } catch (Exception setupHeartBeatE) {
-        System.err.println("[Setup HeartBeat Exception]" + setupHeartBeatE);
+        VersionedValue answer = source.getLocalVersioned(key);
+        if (answer != null && (newest == null || answer.getVersion() > newest.getVersion())) {
+          newest = answer;
+        }
+      } catch (RemoteException readThroughE) {
+        // A node that failed or left has no say
+        continue;
       }
     }
+    return newest;
+  }
+
+  /**
+   * Count a request on the slot of a key, for the token planner
+   * @param key
+   */
+  private void countRequest(String key) {
+    slotRequests.incrementAndGet(slotOf(key));
+  }
+
+  /**
+   * @param key
+   * @return ring slot of a key
+   */
+  private static int slotOf(String key) {
+    return Integer.parseInt(ConsistentHashing.generateHashedId(key, (int)Math.pow(2, HASH_BIT)));
+  }
+
+  @Override
+  public void removeLocal(final String key) throws RemoteException {
+    partitionExecutor.execute(key, () -> {
+      storage.remove(key);
+      return null;
+    });
+  }
+
+  @Override
+  public void setupHeartBeat(final String hashedId) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      if (!heartBeaterTaskMap.containsKey(hashedId)) {
+        NodeInterface remoteNode = membershipTable.get(Integer.parseInt(hashedId));
+        try {
+          heartBeaterTimerMap.put(hashedId, new Timer(true));
+          // The membership table already knows the remote id, so no remote call is made here
+          heartBeaterTaskMap.put(hashedId, new HeartBeater(this, remoteNode, hashedId));
+          heartBeaterTimerMap.get(hashedId).schedule(heartBeaterTaskMap.get(hashedId), 0, 500);
+        } catch (Exception setupHeartBeatE) {
+          System.err.println("[Setup HeartBeat Exception]" + setupHeartBeatE);
+        }
+      }
+      return null;
+    });
   }
 
   @Override
-  public void removeHeartBeat(String hashedId) throws RemoteException {
-    heartBeaterTimerMap.get(hashedId).cancel();
-    heartBeaterTaskMap.get(hashedId).cancel();
-    heartBeaterTimerMap.remove(hashedId);
-    heartBeaterTaskMap.remove(hashedId);
+  public void removeHeartBeat(final String hashedId) throws RemoteException {
+    partitionExecutor.executeControl(() -> {
+      heartBeaterTimerMap.get(hashedId).cancel();
+      heartBeaterTaskMap.get(hashedId).cancel();
+      heartBeaterTimerMap.remove(hashedId);
+      heartBeaterTaskMap.remove(hashedId);
+      return null;
+    });
   }
 
   public class NodeInterfaceComparator implements Comparator<NodeInterface> {
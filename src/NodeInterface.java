@@ -38,6 +38,20 @@ public interface NodeInterface extends Remote {
    */
   HashMap<Integer, NodeInterface> getMembershipTable() throws RemoteException;
 
+  /**
+   * Get the version of the membership table, which grows every time the table changes
+   * @return routing version
+   * @throws RemoteException
+   */
+  long getRoutingVersion() throws RemoteException;
+
+  /**
+   * Get the membership table along with its version and replication settings, for clients routing requests
+   * @return routing table
+   * @throws RemoteException
+   */
+  RoutingTable getRoutingTable() throws RemoteException;
+
   /**
    * remove a node from membership table
    * @param hashedIdValue
@@ -66,10 +80,47 @@ public interface NodeInterface extends Remote {
 
   /**
    * Get local storage of the node
-   * @return local storage in HashMap
+   * @return all key-value pairs stored locally
+   * @throws RemoteException
+   */
+  KeyValueBatch getLocalStorage() throws RemoteException;
+
+  /**
+   * Get the load of the node on every ring slot, and start a new measurement of requests
+   * @return slot load
+   * @throws RemoteException
+   */
+  SlotLoad getSlotLoad() throws RemoteException;
+
+  /**
+   * Get the number of keys stored in this node locally for every ring slot
+   * @return key counts indexed by slot
+   * @throws RemoteException
+   */
+  long[] getSlotKeyCounts() throws RemoteException;
+
+  /**
+   * Get a digest of the keys and versions stored in this node for every ring slot
+   * @return digests indexed by slot, equal on nodes holding the same writes of a slot
+   * @throws RemoteException
+   */
+  long[] getSlotDigests() throws RemoteException;
+
+  /**
+   * Move a node of the ring from token `oldHashedId` to `newHashedId`. The new token has to stay between the tokens
+   * of the node's predecessor and successor, so that the ring keeps its order.
+   * @param oldHashedId
+   * @param newHashedId
    * @throws RemoteException
    */
-  HashMap<String, String> getLocalStorage() throws RemoteException;
+  void reassignToken(String oldHashedId, String newHashedId) throws RemoteException;
+
+  /**
+   * Get metrics of the node
+   * @return metric values by name
+   * @throws RemoteException
+   */
+  HashMap<String, Long> getMetrics() throws RemoteException;
 
   /**
    * Get successor of the node
@@ -113,7 +164,60 @@ public interface NodeInterface extends Remote {
    * @param value
    * @throws RemoteException
    */
-  void putLocal(String key, String value) throws RemoteException;
+  void putLocal(String key, byte[] value) throws RemoteException;
+
+  /**
+   * Store key-value pair expiring after `ttlMillis` in this node locally
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @throws RemoteException
+   */
+  void putLocal(String key, byte[] value, long ttlMillis) throws RemoteException;
+
+  /**
+   * Store key-value pair written with `version` in this node locally, unless a newer version is stored already
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @param version version of the write
+   * @throws RemoteException
+   */
+  void putLocal(String key, byte[] value, long ttlMillis, long version) throws RemoteException;
+
+  /**
+   * Store a batch of key-value pairs in this node locally
+   * @param batch
+   * @throws RemoteException
+   */
+  void putLocalBatch(KeyValueBatch batch) throws RemoteException;
+
+  /**
+   * Apply a read-modify-write to a key whose primary is this node, then write the new value to the other replicas
+   * @param key
+   * @param update
+   * @return new value, or null if a compare-and-set did not match
+   * @throws ReplicationException if the update was applied but could not be written to the other replicas
+   * @throws RemoteException
+   */
+  byte[] applyUpdate(String key, KeyUpdate update) throws RemoteException;
+
+  /**
+   * Apply a batch of chain replication writes in this node locally, and forward them down their chains without
+   * waiting for the nodes after this one. Writes reaching their tail here are acknowledged to their origin. Writes
+   * without an origin come from outside the ring, and are only returned from once their tail acknowledged them.
+   * @param writes
+   * @throws RemoteException if the writes could not be applied, or a write from outside the ring was not acknowledged
+   */
+  void chainPut(ArrayList<ChainWrite> writes) throws RemoteException;
+
+  /**
+   * Acknowledge chain writes sent by this node, once they reached the tail of their chains or failed on the way
+   * @param writeIds
+   * @param failure reason the writes did not reach the tail, null if they did
+   * @throws RemoteException
+   */
+  void chainAck(ArrayList<Long> writeIds, RemoteException failure) throws RemoteException;
 
   /**
    * Get value in this node locally with key
@@ -121,7 +225,82 @@ public interface NodeInterface extends Remote {
    * @return value associated with the key
    * @throws RemoteException
    */
-  String getLocal(String key) throws RemoteException;
+  byte[] getLocal(String key) throws RemoteException;
+
+  /**
+   * Get value in this node locally with key, along with its version
+   * @param key
+   * @return versioned value associated with the key
+   * @throws RemoteException
+   */
+  VersionedValue getLocalVersioned(String key) throws RemoteException;
+
+  /**
+   * Get sorted keys in this node locally, starting from `startKey`
+   * @param startKey first key to return (inclusive), empty to start from the smallest key
+   * @param prefix only return keys starting with `prefix`, empty for all keys
+   * @param limit maximum number of keys to return
+   * @return keys in ascending order
+   * @throws RemoteException
+   */
+  ArrayList<String> scanLocal(String startKey, String prefix, int limit) throws RemoteException;
+
+  /**
+   * Get key-value pairs of some ring slots in this node locally, starting from `startKey`
+   * @param slots
+   * @param startKey first key to return (inclusive), empty to start from the smallest key
+   * @param limit maximum number of pairs to return
+   * @return key-value pairs sorted by key
+   * @throws RemoteException
+   */
+  KeyValueBatch getLocalSlots(ArrayList<Integer> slots, String startKey, int limit) throws RemoteException;
+
+  /**
+   * Remove all keys of some ring slots in this node locally, and refuse further writes to the slots this node does
+   * not replicate
+   * @param slots
+   * @throws RemoteException
+   */
+  void removeLocalSlots(ArrayList<Integer> slots) throws RemoteException;
+
+  /**
+   * Stop reading the slots this node became a replica of through from their former holders, once a movement job
+   * copied them in. Ignored if this node's membership differs from the one the job moved the slots for.
+   * @param ring hashed id values of the nodes in ascending order, as the movement job saw them
+   * @throws RemoteException
+   */
+  void settleSlots(ArrayList<Integer> ring) throws RemoteException;
+
+  /**
+   * Refuse writes to the ring slots this node does not replicate, until it replicates them again. Coordinators still
+   * routing by an older membership get a SlotMovedException and send the write to the new replicas.
+   * @param slots
+   * @throws RemoteException
+   */
+  void fenceSlots(ArrayList<Integer> slots) throws RemoteException;
+
+  /**
+   * Start recording the keys written to some ring slots in this node, while they are copied to other nodes
+   * @param slots
+   * @throws RemoteException
+   */
+  void trackSlots(ArrayList<Integer> slots) throws RemoteException;
+
+  /**
+   * Get the current key-value pairs of the keys written to some tracked ring slots since the last call, and forget
+   * those keys
+   * @param slots
+   * @return key-value pairs
+   * @throws RemoteException
+   */
+  KeyValueBatch takeTrackedWrites(ArrayList<Integer> slots) throws RemoteException;
+
+  /**
+   * Stop recording the keys written to some ring slots in this node
+   * @param slots
+   * @throws RemoteException
+   */
+  void untrackSlots(ArrayList<Integer> slots) throws RemoteException;
 
   /**
    * Remove a key in this node locally
@@ -0,0 +1,171 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+/**
+ * Single-writer execution model of a node. The ring slots are split into partitions, and every partition is owned by
+ * exactly one executor thread with a bounded mailbox, so the state of a partition is only ever mutated by its owner.
+ * Ring and membership state is owned by a separate control executor in the same way.
+ */
+public class PartitionExecutor {
+  private ThreadPoolExecutor[] partitionExecutors;
+  private ThreadPoolExecutor controlExecutor;
+
+  // Marks the executor owning the current thread, so that tasks submitted from the owner run inline
+  private static final ThreadLocal<ThreadPoolExecutor> currentOwner = new ThreadLocal<>();
+
+  public PartitionExecutor(String name, int partitionCount, int mailboxCapacity) {
+    this.partitionExecutors = new ThreadPoolExecutor[partitionCount];
+    for (int i = 0; i < partitionCount; i++) {
+      this.partitionExecutors[i] = createExecutor(name + "-partition-" + i, mailboxCapacity);
+    }
+    this.controlExecutor = createExecutor(name + "-control", mailboxCapacity);
+  }
+
+  /**
+   * Get the partition owning a key
+   * @param key
+   * @return partition index
+   */
+  public int getPartition(String key) {
+    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT));
+    return Integer.parseInt(hashedId) % partitionExecutors.length;
+  }
+
+  /**
+   * Get the number of tasks waiting in all partition mailboxes
+   * @return queue depth
+   */
+  public long getQueueDepth() {
+    long queueDepth = 0;
+    for (ThreadPoolExecutor partitionExecutor : partitionExecutors) {
+      queueDepth += partitionExecutor.getQueue().size();
+    }
+    return queueDepth;
+  }
+
+  /**
+   * Run a task on the owner of the partition of `key` and wait for its result
+   * @param key
+   * @param task
+   * @return result of the task
+   * @throws RemoteException if the task failed
+   */
+  public <T> T execute(String key, Callable<T> task) throws RemoteException {
+    return execute(partitionExecutors[getPartition(key)], task);
+  }
+
+  /**
+   * Queue a task on the owner of the partition of `key` without waiting for it
+   * @param key
+   * @param task
+   * @return future of the result of the task
+   */
+  public <T> Future<T> submit(String key, Callable<T> task) {
+    return partitionExecutors[getPartition(key)].submit(task);
+  }
+
+  /**
+   * Run a batch of key-value updates, each partition applying its own share of the batch in parallel
+   * @param batch
+   * @param task applied to the share of every partition
+   * @throws RemoteException if any of the partitions failed
+   */
+  public void executeBatch(KeyValueBatch batch, final BatchTask task) throws RemoteException {
+    ArrayList<KeyValueBatch> shares = new ArrayList<>();
+    for (int i = 0; i < partitionExecutors.length; i++) {
+      shares.add(new KeyValueBatch());
+    }
+    for (String key : batch.keySet()) {
+      shares.get(getPartition(key)).copyEntry(key, batch);
+    }
+
+    ArrayList<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < partitionExecutors.length; i++) {
+      final KeyValueBatch share = shares.get(i);
+      if (!share.isEmpty()) {
+        futures.add(partitionExecutors[i].submit(() -> {
+          task.apply(share);
+          return null;
+        }));
+      }
+    }
+    for (Future<Void> future : futures) {
+      await(future);
+    }
+  }
+
+  /**
+   * Run a task on the control executor owning ring and membership state and wait for its result
+   * @param task
+   * @return result of the task
+   * @throws RemoteException if the task failed
+   */
+  public <T> T executeControl(Callable<T> task) throws RemoteException {
+    return execute(controlExecutor, task);
+  }
+
+  private <T> T execute(ThreadPoolExecutor executor, Callable<T> task) throws RemoteException {
+    if (currentOwner.get() == executor) {
+      try {
+        return task.call();
+      } catch (RemoteException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RemoteException("Partition task failed", e);
+      }
+    }
+    return await(executor.submit(task));
+  }
+
+  /**
+   * Wait for the result of a task
+   * @param future
+   * @return result of the task
+   * @throws RemoteException if the task failed
+   */
+  public static <T> T await(Future<T> future) throws RemoteException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RemoteException("Partition task failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Partition task interrupted", e);
+    }
+  }
+
+  private static ThreadPoolExecutor createExecutor(final String threadName, int mailboxCapacity) {
+    final ThreadPoolExecutor[] owner = new ThreadPoolExecutor[1];
+    owner[0] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(mailboxCapacity),
+      runnable -> {
+        Thread thread = new Thread(() -> {
+          currentOwner.set(owner[0]);
+          runnable.run();
+        }, threadName);
+        thread.setDaemon(true);
+        return thread;
+      },
+      (runnable, executor) -> {
+        // Mailbox is full, block the sender until the owner catches up
+        try {
+          executor.getQueue().put(runnable);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RejectedExecutionException(e);
+        }
+      });
+    return owner[0];
+  }
+
+  /**
+   * Update applied by a partition to its share of a batch
+   */
+  public interface BatchTask {
+    void apply(KeyValueBatch share) throws Exception;
+  }
+}
@@ -0,0 +1,11 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by the primary of a key that applied a read-modify-write but could not write it to the other replicas. The
+ * update must not be sent again, since applying it twice would change the value twice.
+ */
+public class ReplicationException extends RemoteException {
+  public ReplicationException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,182 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Routing of key requests to the replicas of their key, shared by nodes coordinating requests and by clients outside
+ * the ring. Writes go to every replica, or enter the chain at its head. Reads go to the primary, or to the tail in
+ * chain mode. Read-modify-writes go to the primary, which applies and replicates them. Requests refused before being
+ * applied, because a node was busy or the key moved away, are sent again.
+ */
+public class RequestRouter {
+  private Routing routing;
+  private Metrics metrics;
+
+  private static final int MOVED_RETRIES = 3;
+  private static final long MOVED_BACKOFF_MILLIS = 100;
+
+  /**
+   * View of the ring the requests are routed by
+   */
+  public interface Routing {
+    /**
+     * @param hashedId
+     * @return replicas of the hashed id, primary first
+     */
+    ArrayList<NodeInterface> getPreferenceList(String hashedId);
+
+    boolean isChainReplication();
+
+    /**
+     * Send a write to the head of its chain, returning once the tail applied it
+     * @param head
+     * @param write
+     * @throws RemoteException if the write was not applied by the whole chain
+     */
+    void sendChainWrite(NodeInterface head, ChainWrite write) throws RemoteException;
+
+    /**
+     * Bring the view of the ring up to date after a replica failed or refused a request
+     * @return true if the view is fetched on demand, so a write that failed may be sent again right away
+     */
+    boolean refresh();
+  }
+
+  /**
+   * @param routing
+   * @param metrics counts the retries, null to not count them
+   */
+  public RequestRouter(Routing routing, Metrics metrics) {
+    this.routing = routing;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Write a version of a key to its replicas. Writing the same version twice has no effect, so a write refused
+   * because its slot moved away is sent again to the replicas of the new membership.
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @param version
+   * @param skip replica that already stored the write, null if none did
+   * @throws RemoteException if a replica could not be written
+   */
+  public void write(final String key, final byte[] value, final long ttlMillis, final long version,
+    NodeInterface skip) throws RemoteException {
+    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT));
+    for (int attempt = 1; ; attempt++) {
+      ArrayList<NodeInterface> preferenceList = routing.getPreferenceList(hashedId);
+      if (skip != null) {
+        preferenceList.remove(skip);
+      }
+      try {
+        if (routing.isChainReplication()) {
+          // Enter the chain at its head, acknowledged once the tail applied the write
+          if (!preferenceList.isEmpty()) {
+            ChainWrite write = new ChainWrite(key, value, ttlMillis, version,
+              new ArrayList<>(preferenceList.subList(1, preferenceList.size())));
+            routing.sendChainWrite(preferenceList.get(0), write);
+          }
+        } else {
+          // Write the primary first, then back up replicas along the preference list
+          for (final NodeInterface replica : preferenceList) {
+            BusyRetry.call(() -> {
+              replica.putLocal(key, value, ttlMillis, version);
+              return null;
+            }, metrics);
+          }
+        }
+        return;
+      } catch (RemoteException writeE) {
+        if (attempt == MOVED_RETRIES || BusyRetry.isBusy(writeE)) {
+          throw writeE;
+        }
+        if (SlotMovedException.isMoved(writeE)) {
+          awaitMembership(attempt);
+        } else if (!routing.refresh()) {
+          throw writeE;
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a key from the primary, falling back to the other replicas if it is unreachable. In chain mode only the tail
+   * is guaranteed to hold nothing but acknowledged writes, so it is read first, and its answer is final even when it
+   * misses the key.
+   * @param key
+   * @return value associated with the key, or null if it is absent
+   */
+  public byte[] read(String key) {
+    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT));
+    boolean chainReplication = routing.isChainReplication();
+    ArrayList<NodeInterface> readOrder = routing.getPreferenceList(hashedId);
+    if (chainReplication) {
+      Collections.reverse(readOrder);
+    }
+
+    boolean unreachable = false;
+    byte[] value = null;
+    for (NodeInterface replica : readOrder) {
+      try {
+        value = replica.getLocal(key);
+        if (value != null || chainReplication) {
+          break;
+        }
+      } catch (RemoteException getE) {
+        System.err.println("[Get Key Exception]" + getE);
+        unreachable = true;
+      }
+    }
+    if (unreachable) {
+      routing.refresh();
+    }
+    return value;
+  }
+
+  /**
+   * Send a read-modify-write to the primary of a key, which applies and replicates it in one round trip. Busy nodes
+   * and nodes the key moved away from refuse an update before applying it, so it is sent again. Failures after the
+   * update was applied come back as a ReplicationException, which is never retried.
+   * @param key
+   * @param update
+   * @return new value, or null if a compare-and-set did not match
+   * @throws RemoteException if the update could not be applied
+   */
+  public byte[] update(final String key, final KeyUpdate update) throws RemoteException {
+    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT));
+    for (int attempt = 1; ; attempt++) {
+      final NodeInterface primary = routing.getPreferenceList(hashedId).get(0);
+      try {
+        return BusyRetry.call(() -> primary.applyUpdate(key, update), metrics);
+      } catch (RemoteException updateE) {
+        if (BusyRetry.isBusy(updateE)) {
+          throw updateE;
+        }
+        if (attempt == MOVED_RETRIES || !SlotMovedException.isMoved(updateE)) {
+          routing.refresh();
+          throw updateE;
+        }
+        awaitMembership(attempt);
+      }
+    }
+  }
+
+  /**
+   * Give the membership change that made a replica refuse a request time to spread, then refresh the view of the ring
+   * @param attempt
+   * @throws RemoteException if interrupted
+   */
+  private void awaitMembership(int attempt) throws RemoteException {
+    if (metrics != null) {
+      metrics.increment("client.moved.retries");
+    }
+    try {
+      Thread.sleep(MOVED_BACKOFF_MILLIS * attempt);
+    } catch (InterruptedException interruptE) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Request interrupted", interruptE);
+    }
+    routing.refresh();
+  }
+}
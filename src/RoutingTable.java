@@ -0,0 +1,47 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Snapshot of the ring handed to clients: the nodes by hashed id value, and how keys are replicated among them. The
+ * version grows every time the ring changes on the node the table was taken from.
+ */
+public class RoutingTable implements Serializable {
+  private long version;
+  private HashMap<Integer, NodeInterface> membershipTable;
+  private int replicationFactor;
+  private boolean chainReplication;
+
+  public RoutingTable(long version, HashMap<Integer, NodeInterface> membershipTable, int replicationFactor,
+    boolean chainReplication) {
+    this.version = version;
+    this.membershipTable = membershipTable;
+    this.replicationFactor = replicationFactor;
+    this.chainReplication = chainReplication;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public boolean isChainReplication() {
+    return chainReplication;
+  }
+
+  /**
+   * Get the nodes keeping a replica of a hashed id, the primary first
+   * @param hashedId
+   * @return nodes in preference order
+   */
+  public ArrayList<NodeInterface> getPreferenceList(String hashedId) {
+    ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+    Collections.sort(ring);
+
+    ArrayList<NodeInterface> preferenceList = new ArrayList<>();
+    for (Integer replicaId : ConsistentHashing.findReplicaIds(hashedId, ring, replicationFactor)) {
+      preferenceList.add(membershipTable.get(replicaId));
+    }
+    return preferenceList;
+  }
+}
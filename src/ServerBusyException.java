@@ -0,0 +1,11 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a node shedding a request because it is overloaded. The request was not executed, and can be retried
+ * later or on another replica.
+ */
+public class ServerBusyException extends RemoteException {
+  public ServerBusyException(String message) {
+    super(message);
+  }
+}
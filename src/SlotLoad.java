@@ -0,0 +1,26 @@
+import java.io.Serializable;
+
+/**
+ * Load measured by one node on every ring slot: requests served since the last measurement, and keys stored
+ */
+public class SlotLoad implements Serializable {
+  private long[] requests;
+  private long[] keys;
+
+  /**
+   * @param requests requests served since the last measurement, indexed by slot
+   * @param keys keys stored, indexed by slot
+   */
+  public SlotLoad(long[] requests, long[] keys) {
+    this.requests = requests;
+    this.keys = keys;
+  }
+
+  public long[] getRequests() {
+    return requests;
+  }
+
+  public long[] getKeys() {
+    return keys;
+  }
+}
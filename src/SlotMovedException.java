@@ -0,0 +1,22 @@
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+
+/**
+ * Thrown by a node refusing a write to a ring slot it handed over to other replicas. The write was not applied, and
+ * has to be sent again to the replicas of the current membership.
+ */
+public class SlotMovedException extends RemoteException {
+  public SlotMovedException(String message) {
+    super(message);
+  }
+
+  /**
+   * Check whether a request was refused because its slot moved, either locally or on the other side of an RMI call
+   * @param e
+   * @return true if the request was not executed and may be sent again to the new replicas
+   */
+  public static boolean isMoved(Throwable e) {
+    return e instanceof SlotMovedException
+      || (e instanceof ServerException && e.getCause() instanceof SlotMovedException);
+  }
+}
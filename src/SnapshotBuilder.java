@@ -0,0 +1,221 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Offline builder of snapshot files for bulk loading. It reads a dataset of `key value` lines, splits it by the ring
+ * ranges of the nodes in an address file, and writes one sorted snapshot per range. Datasets larger than the memory
+ * budget are sorted in runs spilled to disk, then merged. When a key appears more than once, its last line wins.
+ *
+ * Usage: java -cp cs425-mp2.jar SnapshotBuilder [address file] [dataset] [output directory] ([memory budget in MB])
+ */
+public class SnapshotBuilder {
+  private ArrayList<Integer> ring;
+  private String outputDir;
+  private long memoryBudget;
+  private long version;
+
+  // Keys not spilled yet, one buffer per range
+  private ArrayList<TreeMap<String, byte[]>> buffers;
+  private long bufferedBytes;
+  // Sorted run files spilled so far, per range
+  private ArrayList<ArrayList<String>> runs;
+
+  private static final int ENTRY_OVERHEAD = 64;
+
+  /**
+   * @param ring hashed id values of the nodes in ascending order
+   * @param outputDir
+   * @param memoryBudget bytes of keys and values buffered before a run is spilled
+   */
+  public SnapshotBuilder(ArrayList<Integer> ring, String outputDir, long memoryBudget) {
+    this.ring = ring;
+    this.outputDir = outputDir;
+    this.memoryBudget = memoryBudget;
+    // Bulk-loaded keys count as written at build time, so they never overwrite later writes
+    this.version = VersionClock.at(System.currentTimeMillis(), VersionClock.BULK_LOAD_ISSUER);
+    this.buffers = new ArrayList<>();
+    this.runs = new ArrayList<>();
+    for (int i = 0; i < ring.size(); i++) {
+      buffers.add(new TreeMap<String, byte[]>());
+      runs.add(new ArrayList<String>());
+    }
+    this.bufferedBytes = 0;
+  }
+
+  /**
+   * Add a key-value pair of the dataset
+   * @param key
+   * @param value
+   * @throws IOException if a run could not be spilled
+   */
+  public void add(String key, byte[] value) throws IOException {
+    String hashedId = ConsistentHashing.generateHashedId(key, (int)Math.pow(2, Node.HASH_BIT));
+    int range = ConsistentHashing.findPrimaryIndex(Integer.parseInt(hashedId), ring);
+
+    byte[] previous = buffers.get(range).put(key, value);
+    bufferedBytes += previous == null ? ENTRY_OVERHEAD + 2 * key.length() + value.length : value.length - previous.length;
+    if (bufferedBytes > memoryBudget) {
+      spill();
+    }
+  }
+
+  /**
+   * Merge all runs into the snapshot files
+   * @return number of keys written
+   * @throws IOException
+   */
+  public long finish() throws IOException {
+    spill();
+    long count = 0;
+    for (int range = 0; range < ring.size(); range++) {
+      count += merge(range);
+    }
+    return count;
+  }
+
+  private int fromSlot(int range) {
+    return ring.get((range - 1 + ring.size()) % ring.size());
+  }
+
+  private int toSlot(int range) {
+    return ring.get(range);
+  }
+
+  private void spill() throws IOException {
+    for (int range = 0; range < ring.size(); range++) {
+      TreeMap<String, byte[]> buffer = buffers.get(range);
+      if (buffer.isEmpty()) {
+        continue;
+      }
+
+      String runPath = outputDir + File.separator + "run-" + range + "-" + runs.get(range).size() + ".tmp";
+      try (SnapshotFile.Writer writer = new SnapshotFile.Writer(runPath, fromSlot(range), toSlot(range))) {
+        for (String key : buffer.keySet()) {
+          writer.append(key, buffer.get(key), version, 0);
+        }
+      }
+      runs.get(range).add(runPath);
+      buffer.clear();
+    }
+    bufferedBytes = 0;
+  }
+
+  /**
+   * Merge the runs of a range into its snapshot files, keeping the pair from the latest run for duplicated keys
+   * @param range
+   * @return number of keys written
+   * @throws IOException
+   */
+  private int merge(int range) throws IOException {
+    PriorityQueue<RunCursor> heads = new PriorityQueue<>();
+    ArrayList<String> runPaths = runs.get(range);
+    for (int i = 0; i < runPaths.size(); i++) {
+      RunCursor cursor = new RunCursor(new SnapshotFile.Reader(runPaths.get(i)), i);
+      if (cursor.reader.next()) {
+        heads.add(cursor);
+      } else {
+        cursor.reader.close();
+      }
+    }
+
+    int count = 0;
+    int part = 0;
+    SnapshotFile.Writer writer = null;
+    while (!heads.isEmpty()) {
+      RunCursor head = heads.poll();
+      String key = head.reader.getKey();
+      if (writer == null || writer.size() > SnapshotFile.PART_BYTES) {
+        if (writer != null) {
+          writer.close();
+        }
+        String snapshotPath = outputDir + File.separator + SnapshotFile.fileName("", fromSlot(range), toSlot(range), part++);
+        writer = new SnapshotFile.Writer(snapshotPath, fromSlot(range), toSlot(range));
+      }
+      writer.append(key, head.reader.getValue(), version, 0);
+      count++;
+
+      // Drop older copies of the key from earlier runs
+      advance(heads, head);
+      while (!heads.isEmpty() && heads.peek().reader.getKey().equals(key)) {
+        advance(heads, heads.poll());
+      }
+    }
+    if (writer != null) {
+      writer.close();
+    }
+
+    for (String runPath : runPaths) {
+      new File(runPath).delete();
+    }
+    return count;
+  }
+
+  private static void advance(PriorityQueue<RunCursor> heads, RunCursor cursor) throws IOException {
+    if (cursor.reader.next()) {
+      heads.add(cursor);
+    } else {
+      cursor.reader.close();
+    }
+  }
+
+  private static class RunCursor implements Comparable<RunCursor> {
+    private SnapshotFile.Reader reader;
+    private int runIndex;
+
+    RunCursor(SnapshotFile.Reader reader, int runIndex) {
+      this.reader = reader;
+      this.runIndex = runIndex;
+    }
+
+    @Override
+    public int compareTo(RunCursor other) {
+      int keyOrder = reader.getKey().compareTo(other.reader.getKey());
+      // Later runs hold later lines of the dataset
+      return keyOrder != 0 ? keyOrder : other.runIndex - runIndex;
+    }
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 3) {
+      System.err.println("Incorrect arguments!");
+      System.err.println("Expected arguments: [address file] [dataset] [output directory] ([memory budget in MB])");
+      return;
+    }
+
+    try {
+      // Ring of the nodes in the address book
+      ArrayList<Integer> ring = new ArrayList<>();
+      BufferedReader addressReader = new BufferedReader(new FileReader(args[0]));
+      String line = addressReader.readLine();
+      while (line != null) {
+        String vmId = line.split(" ")[1];
+        ring.add(Integer.parseInt(ConsistentHashing.generateHashedId(Node.NAME_PREFIX + vmId, (int)Math.pow(2, Node.HASH_BIT))));
+        line = addressReader.readLine();
+      }
+      addressReader.close();
+      Collections.sort(ring);
+
+      long memoryBudget = (args.length > 3 ? Long.parseLong(args[3]) : 256) << 20;
+      new File(args[2]).mkdirs();
+      SnapshotBuilder builder = new SnapshotBuilder(ring, args[2], memoryBudget);
+
+      long startTime = System.currentTimeMillis();
+      BufferedReader datasetReader = new BufferedReader(new FileReader(args[1]), 1 << 16);
+      line = datasetReader.readLine();
+      while (line != null) {
+        int separator = line.indexOf(' ');
+        if (separator > 0) {
+          builder.add(line.substring(0, separator), line.substring(separator + 1).getBytes(StandardCharsets.UTF_8));
+        }
+        line = datasetReader.readLine();
+      }
+      datasetReader.close();
+
+      long count = builder.finish();
+      System.err.println("SNAPSHOT DONE: " + count + " keys in " + (System.currentTimeMillis() - startTime) + " ms");
+    } catch (Exception e) {
+      System.err.println("[Build Snapshot Exception]" + e);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Snapshot of the keys of a ring range (from, to], sorted by key. A snapshot file holds a header with the range,
+ * then one record per key: key, value, version and absolute expiry time (0 if the key does not expire).
+ */
+public class SnapshotFile {
+  public static final String EXTENSION = ".snap";
+  public static final int MAX_KEY_BYTES = 0xFFFF;
+  // Readers map a whole file, so writers start a new part of the range past this size
+  public static final long PART_BYTES = 1L << 30;
+
+  private static final int MAGIC = 0x4B565331;
+  private static final byte RECORD = 1;
+  private static final byte END = 0;
+
+  /**
+   * Build the name of a snapshot file
+   * @param prefix
+   * @param fromSlot
+   * @param toSlot
+   * @param part index of the file among the files of the same range
+   * @return file name
+   */
+  public static String fileName(String prefix, int fromSlot, int toSlot, int part) {
+    return prefix + "range-" + fromSlot + "-" + toSlot + "-part" + part + EXTENSION;
+  }
+
+  /**
+   * Sequential writer, records have to be appended in key order
+   */
+  public static class Writer implements Closeable {
+    private DataOutputStream out;
+    private long size;
+
+    public Writer(String path, int fromSlot, int toSlot) throws IOException {
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(fromSlot);
+      out.writeInt(toSlot);
+      this.size = 12;
+    }
+
+    /**
+     * Append the record of a key
+     * @param key
+     * @param value
+     * @param version
+     * @param expireAt absolute expiry time in milliseconds, 0 if the key does not expire
+     * @throws IOException if the record could not be written, or the key is longer than MAX_KEY_BYTES
+     */
+    public void append(String key, byte[] value, long version, long expireAt) throws IOException {
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      // Key lengths are stored in two bytes
+      if (keyBytes.length > MAX_KEY_BYTES) {
+        throw new IOException("Key of " + keyBytes.length + " bytes exceeds the snapshot limit of " + MAX_KEY_BYTES);
+      }
+      out.writeByte(RECORD);
+      out.writeShort(keyBytes.length);
+      out.write(keyBytes);
+      out.writeInt(value.length);
+      out.write(value);
+      out.writeLong(version);
+      out.writeLong(expireAt);
+      size += 23 + keyBytes.length + value.length;
+    }
+
+    /**
+     * @return bytes written so far
+     */
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.writeByte(END);
+      out.close();
+    }
+  }
+
+  /**
+   * Reader going through the records of a memory-mapped snapshot file
+   */
+  public static class Reader implements Closeable {
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int fromSlot;
+    private int toSlot;
+
+    private String key;
+    private byte[] value;
+    private long version;
+    private long expireAt;
+
+    public Reader(String path) throws IOException {
+      this.file = new RandomAccessFile(path, "r");
+      if (file.length() > Integer.MAX_VALUE) {
+        file.close();
+        throw new IOException("Snapshot file too large to map: " + path);
+      }
+      this.buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      if (buffer.getInt() != MAGIC) {
+        file.close();
+        throw new IOException("Not a snapshot file: " + path);
+      }
+      this.fromSlot = buffer.getInt();
+      this.toSlot = buffer.getInt();
+    }
+
+    public int getFromSlot() {
+      return fromSlot;
+    }
+
+    public int getToSlot() {
+      return toSlot;
+    }
+
+    /**
+     * Move to the next record
+     * @return false at the end of the file
+     */
+    public boolean next() {
+      if (buffer.get() != RECORD) {
+        return false;
+      }
+      byte[] keyBytes = new byte[buffer.getShort() & 0xFFFF];
+      buffer.get(keyBytes);
+      key = new String(keyBytes, StandardCharsets.UTF_8);
+      value = new byte[buffer.getInt()];
+      buffer.get(value);
+      version = buffer.getLong();
+      expireAt = buffer.getLong();
+      return true;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public byte[] getValue() {
+      return value;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public long getExpireAt() {
+      return expireAt;
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+}
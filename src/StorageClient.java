@@ -0,0 +1,256 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Client of the distributed store that does not join the ring. It bootstraps from the address list, caches the
+ * routing table of one node and sends every request straight to the replicas of its key. The table is fetched again
+ * whenever its version changes on that node, or a node cannot be reached.
+ *
+ * Usage: java -cp cs425-mp2.jar StorageClient [address file]
+ */
+public class StorageClient {
+  private ArrayList<String> addressList;
+  // Node the routing table was fetched from
+  private volatile NodeInterface routingSource;
+  private volatile RoutingTable routingTable;
+  private VersionClock versionClock;
+  private RequestRouter router;
+
+  private static final long ROUTING_REFRESH_MILLIS = 1000;
+
+  /**
+   * @param addressList lines of the address book, `[ip] [vm id]`
+   * @throws RemoteException if no node of the address list is reachable
+   */
+  public StorageClient(ArrayList<String> addressList) throws RemoteException {
+    this.addressList = addressList;
+    // Clients take issuer ids above the ring, two clients only share one by chance
+    int ringSize = (int)Math.pow(2, Node.HASH_BIT);
+    this.versionClock = new VersionClock(ringSize + new Random().nextInt(VersionClock.BULK_LOAD_ISSUER - ringSize));
+    bootstrap();
+    this.router = new RequestRouter(new RequestRouter.Routing() {
+      @Override
+      public ArrayList<NodeInterface> getPreferenceList(String hashedId) {
+        return routingTable.getPreferenceList(hashedId);
+      }
+
+      @Override
+      public boolean isChainReplication() {
+        return routingTable.isChainReplication();
+      }
+
+      @Override
+      public void sendChainWrite(final NodeInterface head, final ChainWrite write) throws RemoteException {
+        // Without an origin to acknowledge to, the head waits for the tail before returning
+        BusyRetry.call(() -> {
+          head.chainPut(new ArrayList<>(Collections.singletonList(write)));
+          return null;
+        }, null);
+      }
+
+      @Override
+      public boolean refresh() {
+        refreshRouting();
+        return true;
+      }
+    }, null);
+
+    Timer refreshTimer = new Timer("routing-refresh", true);
+    refreshTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        refreshRouting();
+      }
+    }, ROUTING_REFRESH_MILLIS, ROUTING_REFRESH_MILLIS);
+  }
+
+  /**
+   * Fetch the routing table from the first reachable node of the address list
+   * @throws RemoteException if no node is reachable
+   */
+  private synchronized void bootstrap() throws RemoteException {
+    for (String address : addressList) {
+      String remoteIp = address.split(" ")[0];
+      String remoteId = address.split(" ")[1];
+      try {
+        Registry registry = LocateRegistry.getRegistry(remoteIp, Integer.parseInt("100" + remoteId));
+        NodeInterface remoteNode = (NodeInterface) registry.lookup(Node.NAME_PREFIX + remoteId);
+        routingTable = remoteNode.getRoutingTable();
+        routingSource = remoteNode;
+        return;
+      } catch (Exception e) {
+        // Exception indicates the node is not online, just skip
+        continue;
+      }
+    }
+    throw new RemoteException("No node of the address list is reachable");
+  }
+
+  /**
+   * Fetch the routing table again if it changed since it was cached, or from another node if its source is gone
+   */
+  private void refreshRouting() {
+    try {
+      if (routingSource.getRoutingVersion() != routingTable.getVersion()) {
+        routingTable = routingSource.getRoutingTable();
+      }
+    } catch (RemoteException refreshE) {
+      try {
+        bootstrap();
+      } catch (RemoteException bootstrapE) {
+        System.err.println("[Refresh Routing Exception]" + bootstrapE);
+      }
+    }
+  }
+
+  /**
+   * Put a key-value pair expiring after `ttlMillis` into the distributed store
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @throws RemoteException if a replica could not be written
+   */
+  public void put(String key, String value, long ttlMillis) throws RemoteException {
+    put(key, value.getBytes(StandardCharsets.UTF_8), ttlMillis);
+  }
+
+  /**
+   * Put a key and a binary value expiring after `ttlMillis` into the distributed store
+   * @param key
+   * @param value
+   * @param ttlMillis time to live in milliseconds, 0 to keep the key until it is removed
+   * @throws RemoteException if a replica could not be written
+   */
+  public void put(String key, byte[] value, long ttlMillis) throws RemoteException {
+    router.write(key, value, ttlMillis, versionClock.next(), null);
+  }
+
+  /**
+   * Get a value with key from the distributed store
+   * @param key
+   * @return value associated with the key, or null if it is absent
+   */
+  public String get(String key) {
+    byte[] value = getBytes(key);
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get a binary value with key from the distributed store
+   * @param key
+   * @return value associated with the key, or null if it is absent
+   */
+  public byte[] getBytes(String key) {
+    return router.read(key);
+  }
+
+  /**
+   * Set a key to `value` if it currently holds `expected`, atomically at the primary of the key
+   * @param key
+   * @param expected
+   * @param value
+   * @return true if the key was set
+   * @throws RemoteException if the update could not be applied
+   */
+  public boolean compareAndSet(String key, String expected, String value) throws RemoteException {
+    KeyUpdate update = KeyUpdate.compareAndSet(
+      expected.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    return router.update(key, update) != null;
+  }
+
+  /**
+   * Add `delta` to the integer held by a key, atomically at the primary of the key. An absent key counts as 0.
+   * @param key
+   * @param delta
+   * @return value after the increment
+   * @throws RemoteException if the update could not be applied, or the key does not hold an integer
+   */
+  public long increment(String key, long delta) throws RemoteException {
+    return Long.parseLong(new String(router.update(key, KeyUpdate.increment(delta)), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Append `suffix` to the value of a key, atomically at the primary of the key. An absent key counts as empty.
+   * @param key
+   * @param suffix
+   * @return length of the value after the append, in bytes
+   * @throws RemoteException if the update could not be applied
+   */
+  public int append(String key, String suffix) throws RemoteException {
+    return router.update(key, KeyUpdate.append(suffix.getBytes(StandardCharsets.UTF_8))).length;
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      System.err.println("Incorrect arguments!");
+      System.err.println("Expected arguments: [address file]");
+      return;
+    }
+
+    try {
+      ArrayList<String> addressList = new ArrayList<>();
+      BufferedReader br = new BufferedReader(new FileReader(args[0]));
+      String line = br.readLine();
+      while (line != null) {
+        addressList.add(line);
+        line = br.readLine();
+      }
+      br.close();
+      StorageClient client = new StorageClient(addressList);
+
+      Scanner scan = new Scanner(System.in);
+      String input = scan.nextLine();
+      while (!input.equals("EXIT")) {
+        try {
+          String[] inputs = input.split(" ");
+          if (!StorageController.isValidKeyCommand(inputs)) {
+            System.err.println("Invalid command");
+          } else {
+            switch (inputs[0]) {
+              case "SET":
+                client.put(inputs[1], StorageController.parseValue(inputs), StorageController.parseTtl(inputs));
+                System.out.println("SET OK");
+                break;
+              case "GET":
+                String value = client.get(inputs[1]);
+                System.out.println(value == null ? "Not found" : "Found: " + value);
+                break;
+              case "CAS":
+                System.out.println(client.compareAndSet(inputs[1], inputs[2], inputs[3]) ? "CAS OK" : "CAS FAILED");
+                break;
+              case "INCR":
+                System.out.println("INCR OK: " + client.increment(inputs[1], inputs.length > 2 ? Long.parseLong(inputs[2]) : 1));
+                break;
+              case "APPEND":
+                String suffix = String.join(" ", Arrays.copyOfRange(inputs, 2, inputs.length));
+                System.out.println("APPEND OK: " + client.append(inputs[1], suffix));
+                break;
+              default:
+                System.err.println("Invalid command");
+            }
+          }
+        } catch (NumberFormatException e) {
+          System.err.println("Invalid command");
+        } catch (RemoteException e) {
+          System.err.println(StorageController.describeFailure(e));
+        }
+        input = scan.nextLine();
+      }
+      scan.close();
+      System.exit(0);
+    } catch (Exception e) {
+      System.err.println("[Client Exception]" + e);
+    }
+  }
+}
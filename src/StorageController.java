@@ -1,18 +1,29 @@
 import java.io.*;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class StorageController {
   private Node node;
 
   private static final String RES_PREFIX = "../res/";
+  private static final int BATCH_WINDOW_PER_LANE = 64;
+  private static final int BATCH_PROGRESS_INTERVAL = 10000;
+  private static final BatchOutput BATCH_END = pw -> { };
 
   StorageController(String vmId) {
     try {
       // Init node
+      Config.load(RES_PREFIX + "config.properties");
       node = new Node(vmId);
       Thread.sleep(500);
 
@@ -72,6 +83,12 @@ public class StorageController {
               System.err.println(hashedId + ":" + heartBeaterTaskMap.get(hashedId).remoteNode.getName());
             }
             break;
+          case "METRICS":
+            HashMap<String, Long> metrics = node.getMetrics();
+            for (String name : new TreeSet<>(metrics.keySet())) {
+              System.err.println(name + ":" + metrics.get(name));
+            }
+            break;
           case "HASH":
             if (inputs.length < 2) {
               System.err.println("Invalid command");
@@ -87,8 +104,8 @@ public class StorageController {
               System.err.println("Invalid command");
             } else {
               String key = inputs[1];
-              String value = inputs[2];
-              node.put(key, value);
+              String value = parseValue(inputs);
+              node.put(key, value, parseTtl(inputs));
               System.out.println("SET OK");
             }
             break;
@@ -105,6 +122,30 @@ public class StorageController {
               }
             }
             break;
+          case "CAS":
+            if (!isValidKeyCommand(inputs)) {
+              System.err.println("Invalid command");
+            } else {
+              boolean swapped = node.compareAndSet(inputs[1], inputs[2], inputs[3]);
+              System.out.println(swapped ? "CAS OK" : "CAS FAILED");
+            }
+            break;
+          case "INCR":
+            if (!isValidKeyCommand(inputs)) {
+              System.err.println("Invalid command");
+            } else {
+              long delta = inputs.length > 2 ? Long.parseLong(inputs[2]) : 1;
+              System.out.println("INCR OK: " + node.increment(inputs[1], delta));
+            }
+            break;
+          case "APPEND":
+            if (!isValidKeyCommand(inputs)) {
+              System.err.println("Invalid command");
+            } else {
+              String suffix = String.join(" ", Arrays.copyOfRange(inputs, 2, inputs.length));
+              System.out.println("APPEND OK: " + node.append(inputs[1], suffix));
+            }
+            break;
           case "OWNERS":
             if (inputs.length < 2) {
               System.err.println("Invalid command");
@@ -119,14 +160,44 @@ public class StorageController {
             }
             break;
           case "LIST_LOCAL":
-            HashMap<String, String> localStorage = node.getLocalStorage();
-            ArrayList<String> localKeys = new ArrayList<>(localStorage.keySet());
-            Collections.sort(localKeys);
-            for (String localKey : localKeys) {
-              System.out.println(localKey);
+            KeyScanner localKeys = node.scanLocalKeys();
+            while (localKeys.hasNext()) {
+              System.out.println(localKeys.next());
             }
             System.out.println("END LIST");
             break;
+          case "SCAN":
+            KeyScanner keys = node.scan(inputs.length < 2 ? "" : inputs[1], "");
+            while (keys.hasNext()) {
+              System.out.println(keys.next());
+            }
+            System.out.println("END SCAN");
+            break;
+          case "PREFIX":
+            if (inputs.length < 2) {
+              System.err.println("Invalid command");
+            } else {
+              KeyScanner prefixedKeys = node.scan("", inputs[1]);
+              while (prefixedKeys.hasNext()) {
+                System.out.println(prefixedKeys.next());
+              }
+              System.out.println("END SCAN");
+            }
+            break;
+          case "EXPORT":
+            if (inputs.length < 2) {
+              System.err.println("Invalid command");
+            } else {
+              System.out.println("EXPORT OK: " + node.exportSnapshot(inputs[1]) + " keys");
+            }
+            break;
+          case "IMPORT":
+            if (inputs.length < 2) {
+              System.err.println("Invalid command");
+            } else {
+              System.out.println("IMPORT OK: " + node.importSnapshot(inputs[1]) + " keys");
+            }
+            break;
           case "BATCH":
             if (inputs.length < 3) {
               System.err.println("Invalid command");
@@ -139,7 +210,11 @@ public class StorageController {
           default:
             System.err.println("Invalid command");
         }
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid command");
       } catch (RemoteException e) {
+        System.err.println(describeFailure(e));
+      } catch (IOException | UncheckedIOException e) {
         System.err.println("Exception16: " + e);
       }
       input = scan.nextLine();
@@ -149,58 +224,243 @@ public class StorageController {
     System.exit(0);
   }
 
+  /**
+   * Run the commands of an input file, writing their results to an output file in input order. Commands on the same
+   * key run one after another, while commands on different keys run concurrently on `batch.parallelism` lanes. The
+   * input file is streamed, with a bounded number of commands in flight.
+   * @param input
+   * @param output
+   */
   private void batchOperation(String input, String output) {
-    try {
+    int parallelism = Config.getInt("batch.parallelism", 16);
+    ExecutorService[] lanes = new ExecutorService[parallelism];
+    for (int i = 0; i < parallelism; i++) {
+      lanes[i] = Executors.newSingleThreadExecutor();
+    }
+    // Results waiting to be written, in input order
+    final ArrayBlockingQueue<BatchOutput> window = new ArrayBlockingQueue<>(parallelism * BATCH_WINDOW_PER_LANE);
+    ExecutorService writerPool = Executors.newSingleThreadExecutor();
+
+    try (
       BufferedReader br = new BufferedReader(new FileReader(RES_PREFIX + input));
-      BufferedWriter bw = new BufferedWriter(new FileWriter(RES_PREFIX + output, true));
-      PrintWriter pw = new PrintWriter(bw);
+      PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(RES_PREFIX + output, true)))
+    ) {
+      final long startTime = System.currentTimeMillis();
+      Future<Long> writer = writerPool.submit(() -> writeBatchOutput(window, pw, startTime));
 
       String line = br.readLine();
       while (line != null) {
-        String[] inputs = line.split(" ");
+        final String[] inputs = line.split(" ");
         switch (inputs[0]) {
           case "SET":
-            String key = inputs[1];
-            String value = inputs[2];
-            node.put(key, value);
-            pw.println("SET OK");
-            break;
           case "GET":
-            key = inputs[1];
-            value = node.get(key);
-            if (value == null) {
-              pw.println("Not found");
-            } else {
-              pw.println("Found: " + value);
-            }
-            break;
           case "OWNERS":
-            key = inputs[1];
-            ArrayList<NodeInterface> owners = node.findOwners(key);
-            ArrayList<String> ownerNames = new ArrayList<>();
-            for (NodeInterface node : owners) {
-              ownerNames.add(node.getName());
+          case "CAS":
+          case "INCR":
+          case "APPEND":
+            if (!isValidKeyCommand(inputs)) {
+              window.put(out -> out.println("Invalid command"));
+              break;
             }
-            pw.println(String.join(" ", ownerNames));
+            // Commands on the same key always land on the same lane
+            ExecutorService lane = lanes[(inputs[1].hashCode() & Integer.MAX_VALUE) % parallelism];
+            final Future<String> result = lane.submit(() -> batchKeyCommand(inputs));
+            window.put(out -> out.println(result.get()));
             break;
           case "LIST_LOCAL":
-            HashMap<String, String> localStorage = node.getLocalStorage();
-            ArrayList<String> localKeys = new ArrayList<>(localStorage.keySet());
-            Collections.sort(localKeys);
-            for (String localKey : localKeys) {
-              pw.println(localKey);
+          case "SCAN":
+          case "PREFIX":
+            if (inputs[0].equals("PREFIX") && inputs.length < 2) {
+              window.put(out -> out.println("Invalid command"));
+              break;
             }
-            pw.println("END LIST");
+            // Scans see every earlier command and none of the later ones: the writer runs them once all earlier
+            // results are in, and no further command is read until they are done
+            final CompletableFuture<Void> scanDone = new CompletableFuture<>();
+            window.put(out -> {
+              try {
+                batchScanCommand(inputs, out);
+              } finally {
+                scanDone.complete(null);
+              }
+            });
+            scanDone.get();
             break;
           default:
-            pw.println("Invalid command");
+            window.put(out -> out.println("Invalid command"));
         }
         line = br.readLine();
       }
-      pw.close();
+      window.put(BATCH_END);
+
+      long count = writer.get();
+      double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+      System.err.println(String.format("BATCH DONE: %d commands in %.1f s (%.1f commands/s)", count, seconds, count / seconds));
     } catch (Exception e) {
       System.err.println("Exception17: " + e);
+    } finally {
+      for (ExecutorService lane : lanes) {
+        lane.shutdownNow();
+      }
+      writerPool.shutdownNow();
+    }
+  }
+
+  /**
+   * Write batch results in input order until the end of the batch
+   * @param window results in input order
+   * @param pw
+   * @param startTime
+   * @return number of commands written
+   * @throws InterruptedException
+   */
+  private long writeBatchOutput(ArrayBlockingQueue<BatchOutput> window, PrintWriter pw, long startTime)
+    throws InterruptedException {
+    long count = 0;
+    BatchOutput batchOutput = window.take();
+    while (batchOutput != BATCH_END) {
+      try {
+        batchOutput.write(pw);
+      } catch (ExecutionException batchCommandE) {
+        pw.println(describeFailure(batchCommandE.getCause()));
+      } catch (Exception batchCommandE) {
+        pw.println(describeFailure(batchCommandE));
+      }
+      count++;
+      if (count % BATCH_PROGRESS_INTERVAL == 0) {
+        double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+        System.err.println(String.format("BATCH PROGRESS: %d commands (%.1f commands/s)", count, count / seconds));
+      }
+      batchOutput = window.take();
+    }
+    pw.flush();
+    return count;
+  }
+
+  /**
+   * Run a batch command on a single key
+   * @param inputs tokens of the command
+   * @return result line
+   * @throws RemoteException
+   */
+  private String batchKeyCommand(String[] inputs) throws RemoteException {
+    String key = inputs[1];
+    switch (inputs[0]) {
+      case "SET":
+        node.put(key, parseValue(inputs), parseTtl(inputs));
+        return "SET OK";
+      case "GET":
+        String value = node.get(key);
+        return value == null ? "Not found" : "Found: " + value;
+      case "CAS":
+        return node.compareAndSet(key, inputs[2], inputs[3]) ? "CAS OK" : "CAS FAILED";
+      case "INCR":
+        return "INCR OK: " + node.increment(key, inputs.length > 2 ? Long.parseLong(inputs[2]) : 1);
+      case "APPEND":
+        return "APPEND OK: " + node.append(key, String.join(" ", Arrays.copyOfRange(inputs, 2, inputs.length)));
+      default:
+        ArrayList<String> ownerNames = new ArrayList<>();
+        for (NodeInterface owner : node.findOwners(key)) {
+          ownerNames.add(owner.getName());
+        }
+        return String.join(" ", ownerNames);
+    }
+  }
+
+  /**
+   * Describe a failed request for the console and the batch output
+   * @param e
+   * @return busy line if a node shed the request and it may be sent again later, error line otherwise
+   */
+  static String describeFailure(Throwable e) {
+    return BusyRetry.isBusy(e) ? "BUSY: try again later" : "Error: " + e;
+  }
+
+  /**
+   * Check the number of arguments of a command on a single key
+   * @param inputs tokens of the command
+   * @return true if the command can run
+   */
+  static boolean isValidKeyCommand(String[] inputs) {
+    switch (inputs[0]) {
+      case "SET":
+      case "APPEND":
+        return inputs.length >= 3;
+      case "CAS":
+        return inputs.length == 4;
+      case "INCR":
+        return inputs.length == 2 || (inputs.length == 3 && inputs[2].matches("-?\\d+"));
+      default:
+        return inputs.length >= 2;
+    }
+  }
+
+  /**
+   * Run a batch command listing keys, streaming them to the output
+   * @param inputs tokens of the command
+   * @param pw
+   */
+  private void batchScanCommand(String[] inputs, PrintWriter pw) {
+    switch (inputs[0]) {
+      case "LIST_LOCAL":
+        KeyScanner localKeys = node.scanLocalKeys();
+        while (localKeys.hasNext()) {
+          pw.println(localKeys.next());
+        }
+        pw.println("END LIST");
+        break;
+      case "SCAN":
+        KeyScanner keys = node.scan(inputs.length < 2 ? "" : inputs[1], "");
+        while (keys.hasNext()) {
+          pw.println(keys.next());
+        }
+        pw.println("END SCAN");
+        break;
+      default:
+        KeyScanner prefixedKeys = node.scan("", inputs[1]);
+        while (prefixedKeys.hasNext()) {
+          pw.println(prefixedKeys.next());
+        }
+        pw.println("END SCAN");
+    }
+  }
+
+  /**
+   * Result of a batch command, written once all earlier results are written
+   */
+  private interface BatchOutput {
+    void write(PrintWriter pw) throws Exception;
+  }
+
+  /**
+   * Parse the value of a SET command, which may contain spaces
+   * @param inputs tokens of the command
+   * @return value, without the optional `EX [seconds]` suffix
+   */
+  static String parseValue(String[] inputs) {
+    int valueEnd = hasTtl(inputs) ? inputs.length - 2 : inputs.length;
+    return String.join(" ", Arrays.copyOfRange(inputs, 2, valueEnd));
+  }
+
+  /**
+   * Parse the optional `EX [seconds]` suffix of a SET command
+   * @param inputs tokens of the command
+   * @return time to live in milliseconds, 0 if the key does not expire
+   * @throws NumberFormatException if the time to live does not fit in milliseconds
+   */
+  static long parseTtl(String[] inputs) {
+    if (hasTtl(inputs)) {
+      long seconds = Long.parseLong(inputs[inputs.length - 1]);
+      if (seconds > Long.MAX_VALUE / 1000) {
+        throw new NumberFormatException("Time to live out of range: " + seconds);
+      }
+      return seconds * 1000;
     }
+    return 0;
+  }
+
+  static boolean hasTtl(String[] inputs) {
+    return inputs.length >= 5 && inputs[inputs.length - 2].equals("EX") && inputs[inputs.length - 1].matches("\\d+");
   }
 
   public static void main(String[] args) {
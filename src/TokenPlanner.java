@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TimerTask;
+
+/**
+ * Background planner evening out the load of the ring. Every round, the leader (the node with the largest hashed id)
+ * measures requests and keys per slot on all nodes. If the arc owned by one token carries clearly more than its share,
+ * the boundary of that arc is moved into it: either its own token moves backward, or the token before it moves
+ * forward, whichever leaves the lower peak. At most one token moves per round, and never onto the hashed id of a node
+ * in the address book, where that node would join.
+ */
+public class TokenPlanner extends TimerTask {
+  private Node thisNode;
+  private int imbalancePercent;
+  // Request counts smoothed over rounds, indexed by slot
+  private double[] smoothedRequests;
+
+  private static final double SMOOTHING = 0.5;
+
+  /**
+   * @param thisNode
+   * @param imbalancePercent how far above the average an arc has to be before a token moves
+   */
+  public TokenPlanner(Node thisNode, int imbalancePercent) {
+    this.thisNode = thisNode;
+    this.imbalancePercent = imbalancePercent;
+    this.smoothedRequests = new double[(int)Math.pow(2, Node.HASH_BIT)];
+  }
+
+  @Override
+  public void run() {
+    try {
+      HashMap<Integer, NodeInterface> membershipTable = thisNode.getMembershipTable();
+      ArrayList<Integer> ring = new ArrayList<>(membershipTable.keySet());
+      Collections.sort(ring);
+      if (ring.size() < 2 || Integer.parseInt(thisNode.getHashedId()) != ring.get(ring.size() - 1)
+        || thisNode.getRecoverStatus()) {
+        return;
+      }
+
+      double[] slotLoads = measure(membershipTable);
+      int[] move = plan(ring, slotLoads, thisNode.getAddressBookSlots());
+      if (move != null) {
+        thisNode.moveToken(String.valueOf(move[0]), String.valueOf(move[1]));
+      }
+    } catch (Exception planTokensE) {
+      System.err.println("[Plan Tokens Exception]" + planTokensE);
+    }
+  }
+
+  /**
+   * Collect the load of every slot from all nodes. Requests and keys are both counted as a share of their total,
+   * so that they weigh the same.
+   * @param membershipTable
+   * @return load per slot
+   */
+  private double[] measure(HashMap<Integer, NodeInterface> membershipTable) throws Exception {
+    int space = smoothedRequests.length;
+    long[] requests = new long[space];
+    long[] keys = new long[space];
+    for (NodeInterface node : membershipTable.values()) {
+      SlotLoad slotLoad = node.getSlotLoad();
+      for (int slot = 0; slot < space; slot++) {
+        requests[slot] += slotLoad.getRequests()[slot];
+        keys[slot] += slotLoad.getKeys()[slot];
+      }
+    }
+
+    double totalRequests = 0;
+    long totalKeys = 0;
+    for (int slot = 0; slot < space; slot++) {
+      smoothedRequests[slot] = SMOOTHING * smoothedRequests[slot] + (1 - SMOOTHING) * requests[slot];
+      totalRequests += smoothedRequests[slot];
+      totalKeys += keys[slot];
+    }
+
+    double[] slotLoads = new double[space];
+    for (int slot = 0; slot < space; slot++) {
+      if (totalRequests > 0) {
+        slotLoads[slot] += smoothedRequests[slot] / totalRequests;
+      }
+      if (totalKeys > 0) {
+        slotLoads[slot] += (double) keys[slot] / totalKeys;
+      }
+    }
+    return slotLoads;
+  }
+
+  /**
+   * Pick the token move lowering the load of the hottest arc the most
+   * @param ring hashed id values of the nodes in ascending order
+   * @param slotLoads
+   * @param reservedSlots slots no token may move onto
+   * @return old and new hashed id value of the token to move, or null if the ring is balanced enough
+   */
+  private int[] plan(ArrayList<Integer> ring, double[] slotLoads, Set<Integer> reservedSlots) {
+    int space = slotLoads.length;
+    int size = ring.size();
+
+    // Arc i holds the slots (ring[i - 1], ring[i]]
+    double[] arcLoads = new double[size];
+    double totalLoad = 0;
+    for (int i = 0; i < size; i++) {
+      for (int slot : arcSlots(ring, i, space)) {
+        arcLoads[i] += slotLoads[slot];
+      }
+      totalLoad += arcLoads[i];
+    }
+
+    int hot = 0;
+    for (int i = 1; i < size; i++) {
+      if (arcLoads[i] > arcLoads[hot]) {
+        hot = i;
+      }
+    }
+    if (arcLoads[hot] <= totalLoad / size * (100 + imbalancePercent) / 100) {
+      return null;
+    }
+
+    int before = (hot - 1 + size) % size;
+    int after = (hot + 1) % size;
+    ArrayList<Integer> hotSlots = arcSlots(ring, hot, space);
+    double bestPeak = arcLoads[hot];
+    int[] bestMove = null;
+    double prefixLoad = 0;
+    // The token can land on any slot of the hot arc but its last one, which is the hot token itself
+    for (int k = 0; k < hotSlots.size() - 1; k++) {
+      int slot = hotSlots.get(k);
+      prefixLoad += slotLoads[slot];
+      if (reservedSlots.contains(slot)) {
+        continue;
+      }
+
+      // Token before the hot arc moves forward to `slot`
+      double peak = Math.max(arcLoads[before] + prefixLoad, arcLoads[hot] - prefixLoad);
+      if (peak < bestPeak) {
+        bestPeak = peak;
+        bestMove = new int[]{ring.get(before), slot};
+      }
+
+      // Hot token moves backward to `slot`
+      peak = Math.max(prefixLoad, arcLoads[after] + arcLoads[hot] - prefixLoad);
+      if (peak < bestPeak) {
+        bestPeak = peak;
+        bestMove = new int[]{ring.get(hot), slot};
+      }
+    }
+    return bestMove;
+  }
+
+  /**
+   * Get the slots of the arc ending at the token ring[i], in clockwise order
+   * @param ring
+   * @param i
+   * @param space
+   * @return slots
+   */
+  private static ArrayList<Integer> arcSlots(ArrayList<Integer> ring, int i, int space) {
+    ArrayList<Integer> slots = new ArrayList<>();
+    int slot = ring.get((i - 1 + ring.size()) % ring.size());
+    do {
+      slot = (slot + 1) % space;
+      slots.add(slot);
+    } while (slot != ring.get(i));
+    return slots;
+  }
+}
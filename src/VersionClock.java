@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of versions for new writes. A version holds the wall-clock time in microseconds, so the latest write to a
+ * key wins, and the id of its issuer in the low bits, so writes issued by different coordinators never carry the same
+ * version. Nodes issue with their hashed id, clients and bulk loads with ids above the ring.
+ */
+public class VersionClock {
+  private final long issuerId;
+  // Time part of the last version issued
+  private final AtomicLong lastTime;
+
+  public static final int ISSUER_BITS = 8;
+  // Issuer id of keys loaded from snapshots built offline
+  public static final int BULK_LOAD_ISSUER = (1 << ISSUER_BITS) - 1;
+
+  /**
+   * @param issuerId id distinct from the other issuers, below 2 ^ ISSUER_BITS
+   */
+  public VersionClock(int issuerId) {
+    if (issuerId < 0 || issuerId >= 1 << ISSUER_BITS) {
+      throw new IllegalArgumentException("Version issuer id out of range: " + issuerId);
+    }
+    this.issuerId = issuerId;
+    this.lastTime = new AtomicLong();
+  }
+
+  /**
+   * Get a version for a new write, never repeating one issued before
+   * @return version
+   */
+  public long next() {
+    final long now = System.currentTimeMillis() * 1000;
+    return lastTime.updateAndGet(last -> Math.max(now, last + 1)) << ISSUER_BITS | issuerId;
+  }
+
+  /**
+   * Get a version for a new write that supersedes `version`, even if it was issued by a clock running ahead
+   * @param version
+   * @return version
+   */
+  public long nextAfter(long version) {
+    final long now = Math.max(System.currentTimeMillis() * 1000, (version >>> ISSUER_BITS) + 1);
+    return lastTime.updateAndGet(last -> Math.max(now, last + 1)) << ISSUER_BITS | issuerId;
+  }
+
+  /**
+   * Get the version of a write issued at some time by some issuer
+   * @param millis wall-clock time in milliseconds
+   * @param issuerId
+   * @return version
+   */
+  public static long at(long millis, int issuerId) {
+    return millis * 1000 << ISSUER_BITS | issuerId;
+  }
+}
@@ -0,0 +1,55 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * A value as stored by one replica, with the version of the write that stored it
+ */
+public class VersionedValue implements Externalizable {
+  private byte[] value;
+  private long version;
+  private long ttlMillis;
+
+  public VersionedValue() {
+  }
+
+  /**
+   * @param value
+   * @param version version of the write, higher versions are newer
+   * @param ttlMillis remaining time to live in milliseconds, 0 if the key does not expire
+   */
+  public VersionedValue(byte[] value, long version, long ttlMillis) {
+    this.value = value;
+    this.version = version;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+    out.writeLong(version);
+    out.writeLong(ttlMillis);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    value = new byte[in.readInt()];
+    in.readFully(value);
+    version = in.readLong();
+    ttlMillis = in.readLong();
+  }
+}